@@ -0,0 +1,44 @@
+package com.arsenarsen.updater;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stream copy loop downloads and extraction go through, without the disk or network behind it
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CopyBenchmark {
+    @Param({"1", "16"})
+    public int megabytes;
+
+    @Param({"false", "true"})
+    public boolean network;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        data = Fixtures.randomBytes(megabytes * 1024 * 1024);
+    }
+
+    @Benchmark
+    public long copy() throws Throwable {
+        return (long) Internals.COPY.invoke(new ByteArrayInputStream(data), new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }, network);
+    }
+}
@@ -0,0 +1,53 @@
+package com.arsenarsen.updater;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing plugin jars, read from disk every time and answered from the digest cache
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class FileHashBenchmark {
+    @Param({"1", "10", "100"})
+    public int megabytes;
+
+    private File jar;
+    private Updater updater;
+
+    @Setup
+    public void setup() throws IOException {
+        jar = File.createTempFile("benchmark", ".jar");
+        Files.write(jar.toPath(), Fixtures.randomBytes(megabytes * 1024 * 1024));
+        updater = new Updater(new BenchmarkPlugin("1.0.0"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        jar.delete();
+    }
+
+    @Benchmark
+    public Object md5() throws Throwable {
+        return Internals.DIGEST.invoke(jar, EnumSet.of(Updater.HashAlgorithm.MD5));
+    }
+
+    @Benchmark
+    public Object md5AndSha256() throws Throwable {
+        return Internals.DIGEST.invoke(jar, EnumSet.allOf(Updater.HashAlgorithm.class));
+    }
+
+    @Benchmark
+    public String cached() {
+        return updater.fileHash(jar);
+    }
+}
@@ -0,0 +1,53 @@
+package com.arsenarsen.updater;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * Test data made from fixed seeds, so every run measures the same bytes
+ */
+final class Fixtures {
+    static final long SEED = 0x5eed;
+
+    private Fixtures() {
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(SEED).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Printable and a little repetitive, about as compressible as plugin configs and resources
+     */
+    static byte[] textBytes(Random random, int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++)
+            bytes[i] = (byte) (i % 40 == 39 ? '\n' : 'a' + random.nextInt(8));
+        return bytes;
+    }
+
+    static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root))
+            return;
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
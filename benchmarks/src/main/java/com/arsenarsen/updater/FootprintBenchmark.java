@@ -0,0 +1,37 @@
+package com.arsenarsen.updater;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What holding an updater for every plugin on a large server costs<br>
+ * Run with -prof gc, gc.alloc.rate.norm divided by the count is the size of one updater.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class FootprintBenchmark {
+    private static final int PROJECT = 100000;
+
+    @Param({"1000"})
+    public int count;
+
+    private BenchmarkPlugin plugin;
+
+    @Setup
+    public void setup() {
+        plugin = new BenchmarkPlugin("1.0.0-R0.1-SNAPSHOT");
+    }
+
+    @Benchmark
+    public Updater[] updaters() {
+        Updater[] updaters = new Updater[count];
+        for (int i = 0; i < count; i++)
+            updaters[i] = new Updater(plugin, PROJECT + i);
+        return updaters;
+    }
+}
@@ -0,0 +1,33 @@
+package com.arsenarsen.updater;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+
+/**
+ * Handles to the nested classes of {@link Updater}, which are private so the updater stays one file
+ */
+final class Internals {
+    static final MethodHandle COPY = find("Updater", "copy",
+            java.io.InputStream.class, java.io.OutputStream.class, boolean.class);
+    static final MethodHandle PARSE = find("Updater$ReleaseParser", "parse",
+            java.io.Reader.class, java.util.Set.class, java.util.Map.class);
+    static final MethodHandle DIGEST = find("Updater$DigestCache", "digest",
+            java.io.File.class, java.util.Set.class);
+    static final MethodHandle EXTRACT = find("Updater$Extractor", "extract",
+            java.util.zip.ZipFile.class, java.io.File.class, java.io.File.class);
+    static final MethodHandle SELECT = find("Updater", "select", java.util.List.class);
+
+    private Internals() {
+    }
+
+    private static MethodHandle find(String owner, String name, Class<?>... parameters) {
+        try {
+            Method method = Class.forName("com.arsenarsen.updater." + owner).getDeclaredMethod(name, parameters);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Updater." + owner + "#" + name + " changed, update the benchmarks", e);
+        }
+    }
+}
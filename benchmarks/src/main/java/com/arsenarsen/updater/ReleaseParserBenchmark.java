@@ -0,0 +1,59 @@
+package com.arsenarsen.updater;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.StringReader;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and filtering a release list like the one the CurseForge API answers with
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ReleaseParserBenchmark {
+    private static final int PROJECT = 100736;
+    private static final String[] TYPES = {"release", "release", "beta", "alpha"};
+
+    @Param({"10", "100", "1000"})
+    public int entries;
+
+    private String json;
+    private Set<Integer> ids;
+    private Map<Integer, List<Updater>> filters;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(Fixtures.SEED);
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < entries; i++) {
+            if (i > 0)
+                builder.append(',');
+            String version = "1." + i / 10 + "." + i % 10;
+            builder.append("{\"id\":").append(2000000 + i)
+                    .append(",\"name\":\"Benchmark v").append(version).append("\"")
+                    .append(",\"fileName\":\"Benchmark-").append(version).append(".jar\"")
+                    .append(",\"fileUrl\":\"https://dev.bukkit.org/projects/benchmark/files/").append(2000000 + i).append("\"")
+                    .append(",\"downloadUrl\":\"https://dev.bukkit.org/media/files/").append(2000 + i).append("/")
+                    .append(i).append("/Benchmark-").append(version).append(".jar\"")
+                    .append(",\"gameVersion\":\"1.10\"")
+                    .append(",\"md5\":\"").append(String.format("%032x", random.nextLong())).append("\"")
+                    .append(",\"projectId\":").append(PROJECT)
+                    .append(",\"releaseType\":\"").append(TYPES[random.nextInt(TYPES.length)]).append("\"}");
+        }
+        json = builder.append(']').toString();
+        ids = Collections.singleton(PROJECT);
+        Updater updater = new Updater(new BenchmarkPlugin("1.0.0"));
+        updater.setChannels(Updater.Channel.RELEASE, Updater.Channel.BETA);
+        filters = Collections.singletonMap(PROJECT, Collections.singletonList(updater));
+    }
+
+    @Benchmark
+    public Object parse() throws Throwable {
+        return Internals.PARSE.invoke(new StringReader(json), ids, filters);
+    }
+}
@@ -0,0 +1,79 @@
+package com.arsenarsen.updater;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Extracting a zip of many small resource files, into an empty plugins folder and over an identical one
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class UnzipBenchmark {
+    @Param({"100", "1000"})
+    public int entries;
+
+    @Param({"1024"})
+    public int entrySize;
+
+    private Path root;
+    private ZipFile zip;
+
+    @Setup
+    public void setup() throws Throwable {
+        root = Files.createTempDirectory("benchmark-unzip");
+        File archive = root.resolve("update.zip").toFile();
+        Random random = new Random(Fixtures.SEED);
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive))) {
+            for (int i = 0; i < entries; i++) {
+                out.putNextEntry(new ZipEntry("Benchmark/lang/resource-" + i + ".yml"));
+                out.write(Fixtures.textBytes(random, entrySize));
+                out.closeEntry();
+            }
+        }
+        zip = new ZipFile(archive);
+        File unchanged = root.resolve("unchanged").toFile();
+        Internals.EXTRACT.invoke(zip, unchanged, new File(unchanged, "update"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        zip.close();
+        Fixtures.deleteTree(root);
+    }
+
+    @State(Scope.Thread)
+    public static class Fresh {
+        File plugins;
+
+        @Setup(Level.Invocation)
+        public void clean(UnzipBenchmark benchmark) throws IOException {
+            plugins = benchmark.root.resolve("fresh").toFile();
+            Fixtures.deleteTree(plugins.toPath());
+        }
+    }
+
+    @Benchmark
+    public Object fresh(Fresh fresh) throws Throwable {
+        return Internals.EXTRACT.invoke(zip, fresh.plugins, new File(fresh.plugins, "update"));
+    }
+
+    @Benchmark
+    public Object unchanged() throws Throwable {
+        File plugins = root.resolve("unchanged").toFile();
+        return Internals.EXTRACT.invoke(zip, plugins, new File(plugins, "update"));
+    }
+}
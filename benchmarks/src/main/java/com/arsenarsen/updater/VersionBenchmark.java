@@ -0,0 +1,69 @@
+package com.arsenarsen.updater;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Version parsing and comparison, and the pick of the newest release checkForUpdates makes from a release list
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class VersionBenchmark {
+    private static final int PROJECT = 100736;
+    private static final String[] QUALIFIERS = {"", "", "", "-SNAPSHOT", "-R0.1-SNAPSHOT", "-beta", "-rc1"};
+
+    @Param({"10", "100", "1000"})
+    public int releases;
+
+    private Updater updater;
+    private List<?> list;
+    private Updater.Version installed;
+    private Updater.Version other;
+
+    @Setup
+    public void setup() throws Throwable {
+        Random random = new Random(Fixtures.SEED);
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < releases; i++) {
+            if (i > 0)
+                builder.append(',');
+            builder.append("{\"name\":\"Benchmark v").append(random.nextInt(4)).append('.').append(random.nextInt(20))
+                    .append('.').append(random.nextInt(10)).append(QUALIFIERS[random.nextInt(QUALIFIERS.length)])
+                    .append("\",\"fileName\":\"Benchmark.jar\",\"releaseType\":\"release\",\"projectId\":")
+                    .append(PROJECT).append('}');
+        }
+        String json = builder.append(']').toString();
+        // The release list as a check hands it over, every filter is left to the pick
+        Map<?, ?> parsed = (Map<?, ?>) Internals.PARSE.invoke(new StringReader(json), Collections.singleton(PROJECT),
+                Collections.emptyMap());
+        list = (List<?>) parsed.get(PROJECT);
+        updater = new Updater(new BenchmarkPlugin("2.10.3-R0.1-SNAPSHOT"), PROJECT);
+        installed = Updater.Version.parse("2.10.3-R0.1-SNAPSHOT");
+        other = Updater.Version.parse("2.10.3");
+    }
+
+    @Benchmark
+    public Updater.Version parse() {
+        return Updater.Version.parse("2.10.3-R0.1-SNAPSHOT");
+    }
+
+    @Benchmark
+    public int compare() {
+        return installed.compareTo(other);
+    }
+
+    @Benchmark
+    public Object newest() throws Throwable {
+        return Internals.SELECT.invoke(updater, list);
+    }
+}
@@ -1,30 +1,63 @@
 package com.arsenarsen.updater;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.scheduler.BukkitRunnable;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import java.io.*;
+import java.lang.annotation.Annotation;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 import java.util.logging.Level;
-import java.util.regex.Pattern;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 /**
  * Checks and auto updates a plugin<br>
@@ -35,18 +68,22 @@ import java.util.zip.ZipFile;
  */
 public class Updater {
 
-    private static final Gson GSON = new Gson();
-
     private static final String HOST = "https://api.curseforge.com";
+    private static final String HOST_PROPERTY = "com.arsenarsen.updater.host";
+    private static final String DIR_PROPERTY = "com.arsenarsen.updater.dir";
     private static final String QUERY = "/servermods/files?projectIds=";
     private static final String AGENT = "Mozilla/5.0 Updater by ArsenArsen";
-    private static final File WORKING_DIR = new File("plugins" + File.separator + "AUpdater" + File.separator);
+    private static final File WORKING_DIR = new File(System.getProperty(DIR_PROPERTY,
+            "plugins" + File.separator + "AUpdater") + File.separator);
     private static final File BACKUP_DIR = new File(WORKING_DIR, "backups" + File.separator);
     private static final File LOG_FILE = new File(WORKING_DIR, "updater.log");
     private static final File CONFIG_FILE = new File(WORKING_DIR, "global.yml");
+    private static final File CACHE_DIR = new File(WORKING_DIR, "cache" + File.separator);
     private static final char[] HEX_CHAR_ARRAY = "0123456789abcdef".toCharArray();
-    private static final Pattern NAME_MATCH = Pattern.compile(".+\\sv?[0-9.]+");
-    private static final String VERSION_SPLIT = "\\sv?";
+    private static final long MAX_RESPONSE_BYTES = 16 * 1024 * 1024;
+    private static final double POLL_OFFSET = new Random().nextDouble();
+    private static final int MAX_POLL_BACKOFF = 5;
+    private static volatile Transport transport = new UrlConnectionTransport();
 
     private int id = -1;
 
@@ -56,15 +93,23 @@ public class Updater {
     private UpdateAvailability lastCheck = null;
     private UpdateResult lastUpdate = UpdateResult.NOT_UPDATED;
     private File pluginFile = null;
-    private String downloadURL = null;
-    private String futuremd5;
-    private String downloadName;
+    private volatile UpdateStructure available;
+    private final AtomicBoolean updating = new AtomicBoolean();
     private EnumSet<Channel> allowedChannels = EnumSet.allOf(Channel.class);
-    private List<UpdateCallback> callbacks = new ArrayList<>();
-    private SyncCallbackCaller caller = new SyncCallbackCaller();
+    private final List<UpdateCallback> callbacks = new CopyOnWriteArrayList<>();
     private List<String> skipTags = new ArrayList<>();
     private String latest;
-    private FileConfiguration global;
+    private Version installed;
+    private final Map<Phase, Timing> timings = new ConcurrentHashMap<>();
+    private ScheduledFuture<?> poll;
+    private long pollInterval;
+    private boolean pollDownload;
+    private int pollFailures;
+    private volatile boolean streamZips = false;
+    private volatile long skippedBytes;
+    private final Metrics metrics = new Metrics();
+    private ObjectName metricsName;
+    private final AtomicBoolean exposed = new AtomicBoolean();
 
     /**
      * Makes the updater for a plugin
@@ -79,34 +124,7 @@ public class Updater {
             throw new RuntimeException("You don't have a good text codec on your system", e);
         }
         latest = p.getDescription().getVersion();
-        if (!CONFIG_FILE.exists()) {
-            try {
-                CONFIG_FILE.getParentFile().mkdirs();
-                CONFIG_FILE.createNewFile();
-                log("Created config file!");
-            } catch (IOException e) {
-                p.getLogger().log(Level.SEVERE, "Could not create " + CONFIG_FILE.getName() + "!", e);
-            }
-        }
-        global = YamlConfiguration.loadConfiguration(CONFIG_FILE);
-        global.options().header("Updater by ArsenArsen\nGlobal config\nSets should updates be downloaded globally");
-        if (!global.isSet("update")) {
-            global.set("update", true);
-            try {
-                global.save(CONFIG_FILE);
-            } catch (IOException e) {
-                p.getLogger().log(Level.SEVERE, "Could not save default config file!", e);
-            }
-        }
-        if (!LOG_FILE.exists()) {
-            try {
-                LOG_FILE.getParentFile().mkdirs();
-                LOG_FILE.createNewFile();
-                log("Created log file!");
-            } catch (IOException e) {
-                p.getLogger().log(Level.SEVERE, "Could not create " + LOG_FILE.getName() + "!", e);
-            }
-        }
+        installed = Version.parse(latest);
     }
 
     /**
@@ -150,6 +168,20 @@ public class Updater {
      * @param callbacks All update callbacks you need
      */
     public Updater(Plugin p, int id, boolean download, String[] skipTags, UpdateCallback... callbacks) {
+        this(p, id, download, false, skipTags, callbacks);
+    }
+
+    /**
+     * Makes the updater for a plugin with an ID
+     *
+     * @param p         The plugin
+     * @param id        Plugin ID
+     * @param download  Set to true if your plugin needs to be immediately downloaded
+     * @param async     Set to true to check and download in the background instead of in the constructor
+     * @param skipTags  Tags, endings of a filename, that updater will ignore, or null for none
+     * @param callbacks All update callbacks you need
+     */
+    public Updater(Plugin p, int id, boolean download, boolean async, String[] skipTags, UpdateCallback... callbacks) {
         this(p);
         setID(id);
         this.callbacks.addAll(Arrays.asList(callbacks));
@@ -158,7 +190,25 @@ public class Updater {
                 if (tag.startsWith("-"))
                     this.skipTags.add(tag);
         }
-        if (global.getBoolean("update", true) && download && (checkForUpdates() == UpdateAvailability.UPDATE_AVAILABLE)) {
+        if (download && async) {
+            Workers.submit(Workers.Lane.BACKGROUND, new Callable<UpdateResult>() {
+                @Override
+                public UpdateResult call() {
+                    if (GlobalConfig.get().update && checkForUpdates() == UpdateAvailability.UPDATE_AVAILABLE)
+                        return apply();
+                    return lastUpdate;
+                }
+            }).whenComplete(new BiConsumer<UpdateResult, Throwable>() {
+                @Override
+                public void accept(UpdateResult result, Throwable throwable) {
+                    // Nobody holds this future, so nobody else would ever see the failure
+                    if (throwable != null) {
+                        p.getLogger().log(Level.SEVERE, "Could not update " + p.getName(), throwable);
+                        log("Background update of " + p.getName() + " failed: " + throwable);
+                    }
+                }
+            });
+        } else if (download && GlobalConfig.get().update && (checkForUpdates() == UpdateAvailability.UPDATE_AVAILABLE)) {
             update();
         }
     }
@@ -179,6 +229,25 @@ public class Updater {
      */
     public void setID(int id) {
         this.id = id;
+        if (id != -1) {
+            CheckBatcher.register(this);
+        }
+    }
+
+    /**
+     * Removes this updater's MBean, call it in onDisable so a reload does not keep the old plugin loaded
+     */
+    public void unregisterMetrics() {
+        exposed.set(true);
+        Metrics.unregister(this);
+    }
+
+    /**
+     * Registers the MBean on the first check or update instead of in onEnable, where every plugin waits for it
+     */
+    private void expose() {
+        if (id != -1 && exposed.compareAndSet(false, true))
+            Metrics.register(this);
     }
 
     /**
@@ -206,72 +275,179 @@ public class Updater {
             checkForUpdates();
         }
 
+        if (GlobalConfig.get().update && lastCheck == UpdateAvailability.UPDATE_AVAILABLE) {
+            Workers.submit(Workers.Lane.BACKGROUND, new Callable<UpdateResult>() {
+                @Override
+                public UpdateResult call() {
+                    return apply();
+                }
+            });
+        } else {
+            apply();
+        }
+    }
+
+    /**
+     * Checks for updates and attempts an update in the background
+     *
+     * @return The result of the update, cancelling it stops a running download
+     * @throws IllegalStateException if the ID was not set
+     */
+    public CompletableFuture<UpdateResult> updateAsync() {
+        return updateAsync(null);
+    }
+
+    /**
+     * Checks for updates and attempts an update in the background
+     *
+     * @param executor Where to run the update, or null for the updater's own workers
+     * @return The result of the update, cancelling it stops a running download
+     * @throws IllegalStateException if the ID was not set
+     */
+    public CompletableFuture<UpdateResult> updateAsync(Executor executor) {
+        if (id == -1) {
+            throw new IllegalStateException("Plugin ID is not set!");
+        }
+        if (lastCheck == null)
+            CheckBatcher.expect(this);
+        Callable<UpdateResult> task = new Callable<UpdateResult>() {
+            @Override
+            public UpdateResult call() {
+                if (lastCheck == null) {
+                    checkForUpdates();
+                }
+                return apply();
+            }
+        };
+        return executor == null ? Workers.submit(Workers.Lane.BACKGROUND, task) : Workers.submit(executor, task);
+    }
+
+    /**
+     * Applies the outcome of the last check on this thread and notifies the callbacks<br>
+     * Only one download of an updater runs at a time, applying while one runs returns the last result and
+     * notifies nobody.
+     */
+    private UpdateResult apply() {
+        expose();
         if (!BACKUP_DIR.exists() || !BACKUP_DIR.isDirectory()) {
-            BACKUP_DIR.mkdir();
+            BACKUP_DIR.mkdirs();
         }
-        final Updater updater = this;
-        if (!global.getBoolean("update", true)) {
+        if (!GlobalConfig.get().update) {
             lastUpdate = UpdateResult.DISABLED;
+            metrics.updated(lastUpdate);
             debug("Disabled!");
-            caller.call(callbacks, UpdateResult.DISABLED, updater);
-            return;
+            CallbackDispatcher.dispatch(this, UpdateResult.DISABLED);
+            return lastUpdate;
         }
         if (lastCheck == UpdateAvailability.UPDATE_AVAILABLE) {
-            new BukkitRunnable() {
-
-                @Override
-                public void run() {
-                    debug("Update STARTED!");
-                    p.getLogger().info("Starting update of " + p.getName());
-                    log("Updating " + p.getName() + "!");
-                    lastUpdate = download();
-                    p.getLogger().log(Level.INFO, "Update done! Result: " + lastUpdate);
-                    caller.call(callbacks, lastUpdate, updater);
-                }
-            }.runTaskAsynchronously(p);
+            debug("Update STARTED!");
+            p.getLogger().info("Starting update of " + p.getName());
+            UpdateStructure release = available;
+            if (!updating.compareAndSet(false, true)) {
+                debug("Update already running!");
+                return lastUpdate;
+            }
+            log("Updating " + p.getName() + "!");
+            try {
+                lastUpdate = download(release);
+            } finally {
+                updating.set(false);
+            }
+            p.getLogger().log(Level.INFO, "Update done! Result: " + lastUpdate);
+            CallbackDispatcher.dispatch(this, lastUpdate);
         } else if (lastCheck == UpdateAvailability.SM_UNREACHABLE) {
             lastUpdate = UpdateResult.IOERROR;
             debug("Fail!");
-            caller.call(callbacks, UpdateResult.IOERROR, updater);
+            CallbackDispatcher.dispatch(this, UpdateResult.IOERROR);
         } else {
             lastUpdate = UpdateResult.GENERAL_ERROR;
             debug("Fail!");
-            caller.call(callbacks, UpdateResult.IOERROR, updater);
+            CallbackDispatcher.dispatch(this, UpdateResult.IOERROR);
         }
+        metrics.updated(lastUpdate);
+        return lastUpdate;
     }
 
-    private UpdateResult download() {
+    /**
+     * @param release What the check found, later checks do not change it while it downloads
+     */
+    private UpdateResult download(UpdateStructure release) {
+        skippedBytes = 0;
         try {
-            Files.copy(pluginFile.toPath(),
-                    new File(BACKUP_DIR, "backup-" + System.currentTimeMillis() + "-" + p.getName() + ".jar").toPath(),
-                    StandardCopyOption.REPLACE_EXISTING);
+            CompletableFuture<Void> backup = Workers.offload(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    Span span = new Span();
+                    File backup = BackupStore.backup(pluginFile, p.getName(), p.getDescription().getVersion());
+                    time(Phase.BACKUP, span, backup.length());
+                    return null;
+                }
+            });
+            backup.thenRun(new Runnable() {
+                @Override
+                public void run() {
+                    Workers.submit(Workers.Lane.BACKGROUND, new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            prune();
+                            return null;
+                        }
+                    });
+                }
+            });
             final File downloadTo = new File(pluginFile.getParentFile().getAbsolutePath() +
-                    File.separator + "AUpdater" + File.separator, downloadName);
+                    File.separator + "AUpdater" + File.separator, release.fileName);
             downloadTo.getParentFile().mkdirs();
             downloadTo.delete();
             debug("Started download!");
 
-            downloadIsSeperateBecauseGotoGotRemoved(downloadTo);
+            if (streamZips && !release.fileName.endsWith(".jar")) {
+                UpdateResult streamed = streamZip(release, downloadTo, backup);
+                if (streamed != null)
+                    return streamed;
+            }
+
+            Span span = new Span();
+            String hash = null;
+            RangedDownload ranged = RangedDownload.open(release.downloadUrl, release.md5, downloadTo);
+            if (ranged != null) {
+                debug("Started ranged download!");
+                ranged.run();
+            } else {
+                hash = downloadIsSeperateBecauseGotoGotRemoved(release.downloadUrl, downloadTo);
+            }
+            time(Phase.DOWNLOAD, span, downloadTo.length());
 
             debug("Ended download!");
-            if (!fileHash(downloadTo).equalsIgnoreCase(futuremd5))
+            span = new Span();
+            if (hash == null)
+                hash = DigestCache.digest(downloadTo, EnumSet.of(HashAlgorithm.MD5)).get(HashAlgorithm.MD5);
+            boolean matches = hash.equalsIgnoreCase(release.md5);
+            time(Phase.HASH, span, downloadTo.length());
+            if (!matches) {
+                downloadTo.delete();
                 return UpdateResult.BAD_HASH;
+            }
+            awaitBackup(backup);
+            debug("Backup done!");
             if (downloadTo.getName().endsWith(".jar")) {
-                pluginFile.setWritable(true, false);
-                pluginFile.delete();
-                debug("Started copy!");
-                InputStream in = new FileInputStream(downloadTo);
+                debug("Started install!");
                 File file = new File(pluginFile.getParentFile()
                         .getAbsoluteFile() + File.separator + "update" + File.separator, pluginFile.getName());
-                file.getParentFile().mkdirs();
-                file.createNewFile();
-                OutputStream out = new FileOutputStream(file);
-                long bytes = copy(in, out);
+                span = new Span();
+                long bytes = install(downloadTo, file);
+                time(Phase.INSTALL, span, bytes);
+                pluginFile.setWritable(true, false);
+                pluginFile.delete();
                 p.getLogger().info("Update done! Downloaded " + bytes + " bytes!");
                 log("Updated plugin " + p.getName() + " with " + bytes + "bytes!");
                 return UpdateResult.UPDATE_SUCCEEDED;
-            } else
-                return unzip(downloadTo);
+            } else {
+                span = new Span();
+                UpdateResult result = unzip(downloadTo);
+                time(Phase.EXTRACT, span, downloadTo.length());
+                return result;
+            }
         } catch (IOException e) {
             p.getLogger().log(Level.SEVERE, "Couldn't download update for " + p.getName(), e);
             log("Failed to update " + p.getName() + "!", e);
@@ -279,33 +455,294 @@ public class Updater {
         }
     }
 
+    private static void awaitBackup(CompletableFuture<Void> backup) throws IOException {
+        try {
+            backup.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Extracts a zip into a staging folder while it downloads and digests the raw bytes on the way
+     *
+     * @return The result, or null if the zip has to be downloaded whole
+     */
+    private UpdateResult streamZip(UpdateStructure release, File downloadTo, CompletableFuture<Void> backup) throws IOException {
+        File staging = new File(downloadTo.getPath() + ".staging");
+        deleteTree(staging.toPath());
+        debug("Started streaming extraction!");
+        Span span = new Span();
+        MessageDigest md = md5();
+        long bytes = 0;
+        int entries = 0;
+        Map<Path, Long> crcs = new HashMap<>();
+        try (Transport.Response response = transport.send(new Transport.Request("GET", release.downloadUrl))) {
+            int status = response.getStatus();
+            if (status != 200)
+                throw new IOException(status + " when requesting " + response.getUrl());
+            // The network is charged with what comes over the wire, the disk with what the entries inflate to
+            LimitedInputStream received = new LimitedInputStream(
+                    new ThrottledInputStream(response.getBody(), Throttle.NETWORK), Long.MAX_VALUE);
+            DigestInputStream raw = new DigestInputStream(received, md);
+            ZipInputStream zip = new ZipInputStream(raw);
+            Path root = staging.toPath().toAbsolutePath().normalize();
+            Set<Path> directories = new HashSet<>();
+            byte[] buf = new byte[0x40000];
+            crcs.clear();
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries++;
+                if (entry.isDirectory())
+                    continue;
+                Path target = Extractor.resolve(root, entry.getName());
+                if (directories.add(target.getParent()))
+                    Files.createDirectories(target.getParent());
+                try (OutputStream out = new FileOutputStream(target.toFile())) {
+                    int r;
+                    while ((r = zip.read(buf)) != -1) {
+                        if (Thread.currentThread().isInterrupted())
+                            throw new InterruptedIOException("Cancelled");
+                        Throttle.DISK.acquire(r);
+                        out.write(buf, 0, r);
+                    }
+                }
+                crcs.put(target, entry.getCrc());
+            }
+            // The central directory at the end is only read for the hash
+            while (raw.read(buf) != -1) {
+            }
+            bytes = received.read;
+        } catch (ZipException e) {
+            deleteTree(staging.toPath());
+            debug("Can't stream " + release.fileName + ", downloading it whole: " + e.getMessage());
+            return null;
+        } catch (IOException e) {
+            deleteTree(staging.toPath());
+            throw e;
+        }
+        time(Phase.DOWNLOAD, span, bytes);
+
+        span = new Span();
+        boolean matches = hex(md.digest()).equalsIgnoreCase(release.md5);
+        time(Phase.HASH, span, 0);
+        if (!matches) {
+            deleteTree(staging.toPath());
+            return UpdateResult.BAD_HASH;
+        }
+        if (entries == 0) {
+            deleteTree(staging.toPath());
+            p.getLogger().severe("Could not unzip downloaded file!");
+            log("Update for " + p.getName() + " was an unknown filetype!");
+            return UpdateResult.UNKNOWN_FILE_TYPE;
+        }
+        awaitBackup(backup);
+        File updateFile = new File(pluginFile.getParentFile()
+                .getAbsoluteFile() + File.separator + "update" + File.separator, pluginFile.getName());
+        span = new Span();
+        Extractor.Extracted extracted;
+        try {
+            extracted = Extractor.promote(staging, crcs, pluginFile.getParentFile(), updateFile);
+        } finally {
+            deleteTree(staging.toPath());
+        }
+        time(Phase.EXTRACT, span, extracted.written);
+        skippedBytes = extracted.skipped;
+        log("Updated plugin " + p.getName() + " with " + extracted.written + " streamed bytes, "
+                + extracted.skipped + " unchanged bytes skipped!");
+        return UpdateResult.UPDATE_SUCCEEDED;
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root))
+            return;
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Checks for updates periodically, off the primary thread<br>
+     * <br>
+     * The first check runs after a random part of the interval, so servers started together do not all ask at
+     * once, and every interval is varied by up to a tenth. After the API could not be reached or understood the
+     * interval doubles with every failure, up to 32 times, and goes back once a check succeeds. No check runs
+     * while an update of this updater still downloads, and polling stops after an update was installed.
+     *
+     * @param interval Time between checks
+     * @param unit     Unit of the interval
+     * @param download Update as soon as a check finds one
+     * @throws IllegalStateException    If the plugin ID is not set
+     * @throws IllegalArgumentException If the interval is not positive
+     */
+    public synchronized void startPolling(long interval, TimeUnit unit, boolean download) {
+        if (id == -1) {
+            throw new IllegalStateException("Plugin ID is not set!");
+        }
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Polling interval must be positive!");
+        }
+        stopPolling();
+        pollInterval = unit.toMillis(interval);
+        pollDownload = download;
+        pollFailures = 0;
+        schedulePoll((long) (pollInterval * POLL_OFFSET));
+    }
+
+    /**
+     * Stops checking for updates periodically
+     */
+    public synchronized void stopPolling() {
+        if (poll != null) {
+            poll.cancel(false);
+            poll = null;
+        }
+    }
+
+    private synchronized void schedulePoll(long delay) {
+        poll = Workers.schedule(Workers.Lane.BACKGROUND, new Callable<Void>() {
+            @Override
+            public Void call() {
+                poll();
+                return null;
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        ScheduledFuture<?> current;
+        synchronized (this) {
+            current = poll;
+            if (current == null)
+                return;
+        }
+        // No second download while one still runs, the next poll checks again
+        boolean busy = updating.get();
+        UpdateAvailability result = null;
+        if (!busy && lastUpdate != UpdateResult.UPDATE_SUCCEEDED) {
+            result = checkForUpdates(true);
+            if (result == UpdateAvailability.UPDATE_AVAILABLE && pollDownload && GlobalConfig.get().update)
+                update();
+        }
+        synchronized (this) {
+            if (poll != current)
+                return;
+            if (result == null && !busy) {
+                poll = null;
+                return;
+            }
+            if (result == UpdateAvailability.SM_UNREACHABLE || result == UpdateAvailability.CANT_UNDERSTAND)
+                pollFailures = Math.min(pollFailures + 1, MAX_POLL_BACKOFF);
+            else if (result != null)
+                pollFailures = 0;
+            long delay = pollInterval << pollFailures;
+            schedulePoll(delay + (long) ((Math.random() - 0.5) * 0.2 * delay));
+        }
+    }
+
+    private void prune() {
+        GlobalConfig config = GlobalConfig.get();
+        int keep = config.backupKeep(p.getName());
+        int days = config.backupMaxAgeDays(p.getName());
+        try {
+            BackupStore.prune(p.getName(), keep, TimeUnit.DAYS.toMillis(days));
+        } catch (IOException e) {
+            log("Could not prune backups of " + p.getName(), e);
+        }
+    }
+
     /**
      * God damn it Gosling, <a href="http://stackoverflow.com/a/4547764/3809164">reference here.</a>
+     *
+     * @return The MD5 hex of the downloaded bytes, digested while they were written
      */
-    private void downloadIsSeperateBecauseGotoGotRemoved(File downloadTo) throws IOException {
-        URL url = new URL(downloadURL);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.addRequestProperty("User-Agent", AGENT);
-        connection.connect();
-        if (connection.getResponseCode() >= 300 && connection.getResponseCode() < 400) {
-            downloadURL = connection.getHeaderField("Location");
-            downloadIsSeperateBecauseGotoGotRemoved(downloadTo);
-        } else {
-            debug(connection.getResponseCode() + " " + connection.getResponseMessage() + " when requesting " + downloadURL);
-            copy(connection.getInputStream(), new FileOutputStream(downloadTo));
+    private String downloadIsSeperateBecauseGotoGotRemoved(String downloadURL, File downloadTo) throws IOException {
+        try (Transport.Response response = transport.send(new Transport.Request("GET", downloadURL))) {
+            final int status = response.getStatus();
+            final String url = response.getUrl();
+            debug(new Supplier<String>() {
+                @Override
+                public String get() {
+                    return status + " when requesting " + url;
+                }
+            });
+            if (status != 200)
+                throw new IOException(status + " when requesting " + url);
+            MessageDigest md = md5();
+            copy(new DigestInputStream(response.getBody(), md), new FileOutputStream(downloadTo), true);
+            return hex(md.digest());
+        }
+    }
+
+    /**
+     * Moves a file into place, the target either keeps its old contents or gets the whole new file<br>
+     * The file is staged next to the target first, renamed if both are on the same file system and
+     * copied through the channels otherwise, then renamed over the target in one step.
+     *
+     * @return The size of the installed file
+     */
+    private static long install(File source, File target) throws IOException {
+        target.getParentFile().mkdirs();
+        Path staged = new File(target.getParentFile(), "." + target.getName() + ".part").toPath();
+        long bytes = source.length();
+        try {
+            Files.move(source.toPath(), staged, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(staged, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = 0;
+                while (position < bytes) {
+                    long chunk = Math.min(bytes - position, 0x100000);
+                    Throttle.DISK.acquire(chunk);
+                    position += in.transferTo(position, chunk, out);
+                }
+                out.force(true);
+            }
+            Files.delete(source.toPath());
+        }
+        try {
+            Files.move(staged, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(staged, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
         }
+        return bytes;
+    }
+
+    /**
+     * Copies and closes both streams, written bytes count against the disk throttle
+     *
+     * @param network Also count the read bytes against the network throttle
+     */
+    private static long copy(InputStream in, OutputStream out, boolean network) throws IOException {
+        return copy(in, out, network, new byte[0x1000]);
     }
 
-    private long copy(InputStream in, OutputStream out) throws IOException {
+    private static long copy(InputStream in, OutputStream out, boolean network, byte[] buf) throws IOException {
         long bytes = 0;
-        byte[] buf = new byte[0x1000];
         while (true) {
             int r = in.read(buf);
             if (r == -1)
                 break;
+            if (Thread.currentThread().isInterrupted())
+                throw new InterruptedIOException("Cancelled");
+            if (network)
+                Throttle.NETWORK.acquire(r);
+            Throttle.DISK.acquire(r);
             out.write(buf, 0, r);
             bytes += r;
-            debug("Another 4K, current: " + r);
         }
         out.flush();
         out.close();
@@ -315,26 +752,13 @@ public class Updater {
 
 
     private UpdateResult unzip(File download) {
-        ZipFile zipFile = null;
-        try {
-            zipFile = new ZipFile(download);
-            Enumeration<? extends ZipEntry> entries = zipFile.entries();
-            ZipEntry entry;
-            File updateFile = new File(pluginFile.getParentFile()
-                    .getAbsoluteFile() + File.separator + "update" + File.separator, pluginFile.getName());
-            while ((entry = entries.nextElement()) != null) {
-                File target = new File(updateFile, entry.getName());
-                File inPlugins = new File(pluginFile.getParentFile(), entry.getName());
-                if (!inPlugins.exists()) {
-                    target = inPlugins;
-                }
-                if (!entry.isDirectory()) {
-                    target.getParentFile().mkdirs();
-                    InputStream zipStream = zipFile.getInputStream(entry);
-                    OutputStream fileStream = new FileOutputStream(target);
-                    copy(zipStream, fileStream);
-                }
-            }
+        File updateFile = new File(pluginFile.getParentFile()
+                .getAbsoluteFile() + File.separator + "update" + File.separator, pluginFile.getName());
+        try (ZipFile zipFile = new ZipFile(download)) {
+            Extractor.Extracted extracted = Extractor.extract(zipFile, pluginFile.getParentFile(), updateFile);
+            skippedBytes = extracted.skipped;
+            log("Updated plugin " + p.getName() + " with " + extracted.written + " unzipped bytes, "
+                    + extracted.skipped + " unchanged bytes skipped!");
             return UpdateResult.UPDATE_SUCCEEDED;
         } catch (IOException e) {
             if (e instanceof ZipException) {
@@ -347,13 +771,6 @@ public class Updater {
                 log("Update for " + p.getName() + "was an unknown filetype! ", e);
                 return UpdateResult.IOERROR;
             }
-        } finally {
-            if (zipFile != null) {
-                try {
-                    zipFile.close();
-                } catch (IOException ignored) {
-                }
-            }
         }
     }
 
@@ -368,104 +785,57 @@ public class Updater {
         if (id == -1) {
             throw new IllegalStateException("Plugin ID is not set!");
         }
+        expose();
 
         if (force || lastCheck == null) {
-            String target = HOST + QUERY + id;
+            String target = host() + QUERY + id;
             debug(target);
+            final long start = System.nanoTime();
             try {
-                URL url = new URL(target);
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                connection.addRequestProperty("User-Agent", AGENT);
-                connection.connect();
-                debug("Connecting!");
-                int counter = 1;
-                if (connection.getResponseCode() == 200) {
-                    try {
-                        debug("RESCODE 200");
-                        debug("Counter: " + counter);
-                        UpdateStructure[] json = GSON.fromJson(new InputStreamReader(connection.getInputStream()),
-                                UpdateStructure[].class);
-                        while (true) {
-                            if (json.length - counter < 0) {
-                                lastCheck = UpdateAvailability.NO_UPDATE;
-                                debug("No update!");
-                                break;
-                            }
-                            UpdateStructure latest = json[json.length - counter];
-                            futuremd5 = latest.md5;
-                            String channel = latest.releaseType;
-                            String name = latest.name;
-                            if (allowedChannels.contains(Channel.matchChannel(channel))
-                                    && !hasTag(name)) {
-                                String noTagName = name;
-                                StringBuilder oldVersion = new StringBuilder(p.getDescription().getVersion().replaceAll("-.*", ""));
-                                for (String tag : skipTags) {
-                                    noTagName = noTagName.replace(tag, "");
-                                    oldVersion = new StringBuilder(oldVersion.toString().replace(tag, ""));
-                                }
-                                if (!NAME_MATCH.matcher(noTagName).matches()) {
-                                    lastCheck = UpdateAvailability.CANT_PARSE_NAME;
-                                    return lastCheck;
-                                }
-                                String[] splitName = noTagName.split(VERSION_SPLIT);
-                                StringBuilder version = new StringBuilder(splitName[splitName.length - 1]);
-                                while (oldVersion.length() != version.length()) {
-                                    if (oldVersion.length() > version.length()) {
-                                        version.append(version.length() % 2 == 0 ? ".0" : ".00");
-                                    } else if (oldVersion.length() < version.length()) {
-                                        oldVersion.append(oldVersion.length() % 2 == 0 ? ".0" : ".00");
-                                    }
-                                }
-                                // The double 0 here is to make the lengths even so they can eventually be the same
-
-                                debug("Versions are same length");
-                                String[] splitOldVersion = oldVersion.toString().split("\\.");
-                                String[] splitVersion = version.toString().split("\\.");
-
-                                int[] parsedOldVersion = new int[splitOldVersion.length];
-                                int[] parsedVersion = new int[splitVersion.length];
-
-                                for (int i = 0; i < parsedOldVersion.length; i++) {
-                                    parsedOldVersion[i] = Integer.parseInt(splitOldVersion[i]);
-                                }
-                                for (int i = 0; i < parsedVersion.length; i++) {
-                                    parsedVersion[i] = Integer.parseInt(splitVersion[i]);
-                                }
-                                boolean update = false;
-                                for (int i = 0; i < parsedOldVersion.length; i++) {
-                                    if (parsedOldVersion[i] < parsedVersion[i]) {
-                                        update = true;
-                                        break;
-                                    }
-                                }
-                                if (!update) {
-                                    counter++;
-                                    continue;
-                                } else {
-                                    lastCheck = UpdateAvailability.UPDATE_AVAILABLE;
-                                    downloadURL = latest.downloadUrl.replace(" ", "%20");
-                                    downloadName = latest.fileName;
-                                }
-                                break;
-                            } else
-                                counter++;
-                        }
-                        debug("While loop over!");
-                    } catch (JsonParseException e) {
-                        p.getLogger().log(Level.SEVERE, "Could not parse API Response for " + target, e);
-                        log("Could not parse API Response for " + target + " while updating " + p.getName(), e);
-                        lastCheck = UpdateAvailability.CANT_UNDERSTAND;
+                List<UpdateStructure> releases = CheckBatcher.fetch(this, force);
+                final int count = releases.size();
+                debug(new Supplier<String>() {
+                    @Override
+                    public String get() {
+                        return "Got " + count + " releases in " + (System.nanoTime() - start) / 1000000 + "ms";
                     }
+                });
+                Span span = new Span();
+                Selection newest = select(releases);
+                time(Phase.SELECT, span, 0);
+                if (installed == null || (newest.release == null && newest.unparsed)) {
+                    lastCheck = UpdateAvailability.CANT_PARSE_NAME;
+                } else if (newest.release != null && newest.version.compareTo(installed) > 0) {
+                    UpdateStructure release = new UpdateStructure();
+                    release.name = newest.release.name;
+                    release.md5 = newest.release.md5;
+                    release.downloadUrl = newest.release.downloadUrl.replace(" ", "%20");
+                    release.fileName = newest.release.fileName;
+                    available = release;
+                    lastCheck = UpdateAvailability.UPDATE_AVAILABLE;
+                    latest = newest.version.toString();
                 } else {
-                    log("Could not reach API for " + target + " while updating " + p.getName());
-                    lastCheck = UpdateAvailability.SM_UNREACHABLE;
+                    lastCheck = UpdateAvailability.NO_UPDATE;
+                    debug("No update!");
                 }
-                connection.disconnect();
+            } catch (JsonParseException e) {
+                p.getLogger().log(Level.SEVERE, "Could not parse API Response for " + target, e);
+                log("Could not parse API Response for " + target + " while updating " + p.getName(), e);
+                lastCheck = UpdateAvailability.CANT_UNDERSTAND;
+            } catch (UnreachableException e) {
+                log("Could not reach API for " + target + " while updating " + p.getName());
+                lastCheck = UpdateAvailability.SM_UNREACHABLE;
             } catch (IOException e) {
+                if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+                    // Cancelled, not failed, the last result stays
+                    log("Update check for " + p.getName() + " was cancelled");
+                    return lastCheck;
+                }
                 p.getLogger().log(Level.SEVERE, "Could not check for updates for plugin " + p.getName(), e);
                 log("Could not reach API for " + target + " while updating " + p.getName(), e);
                 lastCheck = UpdateAvailability.SM_UNREACHABLE;
             }
+            metrics.checked(System.nanoTime() - start, lastCheck);
         }
         log("Update check ran for " + p.getName() + "! Check resulted in " + lastCheck);
         return lastCheck;
@@ -476,14 +846,29 @@ public class Updater {
             p.getLogger().info(message + ' ' + new Throwable().getStackTrace()[1]);
     }
 
+    /**
+     * Debugs a message that is only built, along with the caller's stack frame, when debugging is on
+     */
+    private void debug(Supplier<String> message) {
+        if (debug)
+            p.getLogger().info(message.get() + ' ' + new Throwable().getStackTrace()[1]);
+    }
+
+    private void time(final Phase phase, Span span, long bytes) {
+        final Timing timing = new Timing(System.nanoTime() - span.start, bytes);
+        timings.put(phase, timing);
+        metrics.timed(phase, timing);
+        Flight.commit(span.event, phase, p.getName(), String.valueOf(id), bytes);
+        debug(new Supplier<String>() {
+            @Override
+            public String get() {
+                return phase + " took " + timing;
+            }
+        });
+    }
+
     private void log(String message) {
-        try {
-            Files.write(LOG_FILE.toPath(), Collections.singletonList(
-                    "[" + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + "] " + message),
-                    StandardCharsets.UTF_8, StandardOpenOption.APPEND);
-        } catch (IOException e) {
-            p.getLogger().log(Level.SEVERE, "Could not log to " + LOG_FILE.getAbsolutePath() + "!", e);
-        }
+        LogAppender.append(message, p.getLogger());
     }
 
     private void log(String message, Exception exception) {
@@ -498,6 +883,39 @@ public class Updater {
         print.close();
     }
 
+    /**
+     * Picks the newest release that passes the channel and tag filters, of equal versions the one listed last
+     *
+     * @param releases The releases, oldest first
+     */
+    private Selection select(List<UpdateStructure> releases) {
+        UpdateStructure newest = null;
+        Version newestVersion = null;
+        boolean unparsed = false;
+        for (UpdateStructure release : releases) {
+            if (!accepts(release.releaseType, release.name))
+                continue;
+            Version version = Version.fromName(stripTags(release.name));
+            if (version == null) {
+                unparsed = true;
+            } else if (newestVersion == null || version.compareTo(newestVersion) >= 0) {
+                newest = release;
+                newestVersion = version;
+            }
+        }
+        return new Selection(newest, newestVersion, unparsed);
+    }
+
+    private boolean accepts(String releaseType, String name) {
+        return allowedChannels.contains(Channel.matchChannel(releaseType)) && !hasTag(name);
+    }
+
+    private String stripTags(String name) {
+        for (String tag : skipTags)
+            name = name.replace(tag, "");
+        return name;
+    }
+
     private boolean hasTag(String name) {
         for (String tag : skipTags) {
             if (name.toLowerCase().endsWith(tag.toLowerCase())) {
@@ -517,6 +935,52 @@ public class Updater {
         return checkForUpdates(false);
     }
 
+    /**
+     * Checks for new updates in the background, non forcing cache override
+     *
+     * @return The outcome of the check
+     * @throws IllegalStateException If the plugin ID is not set
+     */
+    public CompletableFuture<UpdateAvailability> checkForUpdatesAsync() {
+        return checkForUpdatesAsync(false);
+    }
+
+    /**
+     * Checks for new updates in the background, forced checks go ahead of queued background work
+     *
+     * @param force Discards the cached state in order to get a new one, ignored if update check didn't run
+     * @return The outcome of the check
+     * @throws IllegalStateException If the plugin ID is not set
+     */
+    public CompletableFuture<UpdateAvailability> checkForUpdatesAsync(boolean force) {
+        return checkForUpdatesAsync(force, null);
+    }
+
+    /**
+     * Checks for new updates in the background
+     *
+     * @param force    Discards the cached state in order to get a new one, ignored if update check didn't run
+     * @param executor Where to run the check, or null for the updater's own workers
+     * @return The outcome of the check, cancelling it interrupts the check
+     * @throws IllegalStateException If the plugin ID is not set
+     */
+    public CompletableFuture<UpdateAvailability> checkForUpdatesAsync(final boolean force, Executor executor) {
+        if (id == -1) {
+            throw new IllegalStateException("Plugin ID is not set!");
+        }
+        if (!force && lastCheck == null)
+            CheckBatcher.expect(this);
+        Callable<UpdateAvailability> task = new Callable<UpdateAvailability>() {
+            @Override
+            public UpdateAvailability call() {
+                return checkForUpdates(force);
+            }
+        };
+        if (executor != null)
+            return Workers.submit(executor, task);
+        return Workers.submit(force ? Workers.Lane.INTERACTIVE : Workers.Lane.BACKGROUND, task);
+    }
+
     /**
      * Checks did the update run successfully
      *
@@ -536,6 +1000,28 @@ public class Updater {
         allowedChannels.addAll(Arrays.asList(channels));
     }
 
+    /**
+     * Sets whether zip releases are extracted while they download<br>
+     * <br>
+     * The entries go into a staging folder as they arrive and are only moved into place once the MD5 of the
+     * whole archive matches, so the archive itself is never written to disk. Zips that can not be read front to
+     * back are downloaded whole instead.
+     *
+     * @param stream True to extract zips while they download
+     */
+    public void setStreamingExtraction(boolean stream) {
+        this.streamZips = stream;
+    }
+
+    /**
+     * Gets how many bytes the last zip update did not write because the files on disk were already the same
+     *
+     * @return The bytes of unchanged entries that were skipped
+     */
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+
     /**
      * Gets the latest version
      *
@@ -546,13 +1032,51 @@ public class Updater {
     }
 
     /**
-     * Shows the outcome of an update
+     * Sets how every updater in this JVM talks HTTP, for example to use java.net.http where it is available
      *
-     * @author Arsen
+     * @param transport The transport, or null to go back to the default one
      */
-    public enum UpdateResult {
-        /**
-         * Update was successful
+    public static void setTransport(Transport transport) {
+        Updater.transport = transport == null ? new UrlConnectionTransport() : transport;
+    }
+
+    /**
+     * Gets how much updater work is waiting for a free worker, across every updater
+     *
+     * @return The number of queued tasks
+     */
+    public static int getQueueDepth() {
+        return Workers.queued(Workers.Lane.INTERACTIVE) + Workers.queued(Workers.Lane.BACKGROUND);
+    }
+
+    /**
+     * Gets how long each phase of the last check and update took
+     *
+     * @return The timing of every phase that ran so far
+     */
+    public Map<Phase, Timing> getTimings() {
+        Map<Phase, Timing> copy = new EnumMap<>(Phase.class);
+        copy.putAll(timings);
+        return copy;
+    }
+
+    /**
+     * Gets the version of the running plugin
+     *
+     * @return The installed version, or null if it could not be parsed
+     */
+    public Version getInstalledVersion() {
+        return installed;
+    }
+
+    /**
+     * Shows the outcome of an update
+     *
+     * @author Arsen
+     */
+    public enum UpdateResult {
+        /**
+         * Update was successful
          */
         UPDATE_SUCCEEDED,
 
@@ -617,6 +1141,198 @@ public class Updater {
         CANT_UNDERSTAND
     }
 
+    /**
+     * A hash {@link #fileHash(File, HashAlgorithm)} can compute
+     *
+     * @author Arsen
+     */
+    public enum HashAlgorithm {
+        MD5("MD5"),
+        SHA256("SHA-256");
+
+        private final String algorithm;
+
+        HashAlgorithm(String algorithm) {
+            this.algorithm = algorithm;
+        }
+
+        MessageDigest create() {
+            try {
+                return MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Every JVM has " + algorithm, e);
+            }
+        }
+
+        /**
+         * Gets the JCA name of the algorithm
+         *
+         * @return The algorithm name
+         */
+        public String getAlgorithm() {
+            return algorithm;
+        }
+    }
+
+    /**
+     * A step of checking for or applying an update
+     *
+     * @author Arsen
+     */
+    public enum Phase {
+        /**
+         * Fetching the release list, or revalidating the cached one
+         */
+        REQUEST,
+
+        /**
+         * Parsing the release list
+         */
+        PARSE,
+
+        /**
+         * Picking the newest release out of the list
+         */
+        SELECT,
+
+        /**
+         * Backing the plugin jar up
+         */
+        BACKUP,
+
+        /**
+         * Downloading the update
+         */
+        DOWNLOAD,
+
+        /**
+         * Verifying the hash of the download
+         */
+        HASH,
+
+        /**
+         * Moving a jar into the update folder
+         */
+        INSTALL,
+
+        /**
+         * Extracting a zip
+         */
+        EXTRACT
+    }
+
+    /**
+     * What the updater MBeans show<br>
+     * <br>
+     * Every updater with an ID is registered on its first check or update as
+     * com.arsenarsen.updater:type=Updater,name=&lt;plugin&gt;, and all of them together as
+     * com.arsenarsen.updater:type=Aggregate. Relocated copies of the updater use their own package as the domain.
+     *
+     * @author Arsen
+     */
+    public interface MetricsMXBean {
+        /**
+         * @return Update checks that went to the release list
+         */
+        long getChecks();
+
+        /**
+         * @return Checks by how long they took, keyed by the upper bound of each bucket
+         */
+        Map<String, Long> getCheckLatencyHistogram();
+
+        /**
+         * @return Mean time of a check in milliseconds
+         */
+        double getMeanCheckMillis();
+
+        /**
+         * @return Outcome of the last check, or null if there was none
+         */
+        String getLastAvailability();
+
+        /**
+         * @return Outcome of the last update, or null if there was none
+         */
+        String getLastResult();
+
+        /**
+         * @return Bytes of every download
+         */
+        long getBytesDownloaded();
+
+        /**
+         * @return Downloaded bytes per second of download time
+         */
+        long getDownloadBytesPerSecond();
+
+        /**
+         * @return Time spent verifying downloads in milliseconds
+         */
+        double getHashMillis();
+
+        /**
+         * @return Failed checks and updates, keyed by their outcome
+         */
+        Map<String, Long> getFailures();
+
+        /**
+         * @return Checks answered without downloading the release list
+         */
+        long getCacheHits();
+
+        /**
+         * @return Checks that downloaded the release list
+         */
+        long getCacheMisses();
+
+        /**
+         * @return Share of checks answered without downloading the release list, 0 to 1
+         */
+        double getCacheHitRate();
+    }
+
+    /**
+     * How long a phase took and how many bytes it handled
+     *
+     * @author Arsen
+     */
+    public static final class Timing {
+        private final long nanos;
+        private final long bytes;
+
+        Timing(long nanos, long bytes) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return The duration in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return The bytes read or written
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return The throughput, 0 if nothing was transferred
+         */
+        public long getBytesPerSecond() {
+            return nanos == 0 ? 0 : bytes * 1000000000L / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return nanos / 1000000 + "ms, " + bytes + " bytes, " + getBytesPerSecond() + " B/s";
+        }
+    }
+
     public enum Channel {
         /**
          * Normal release
@@ -664,6 +1380,168 @@ public class Updater {
         }
     }
 
+    /**
+     * A parsed plugin version, such as 1.2.3 or 1.10-R0.1-SNAPSHOT<br>
+     * <br>
+     * Numeric components are compared one by one, missing ones count as zero, so 1.2 equals 1.2.0.
+     * A pre-release qualifier (dev, alpha, beta, pre, rc, snapshot) makes a version older than the same
+     * version without one. Pre-releases are ordered by that tag, in the order given, and then by the number
+     * after it, so 1.0-rc1 is older than 1.0-rc2. The tag has to be a word of its own in the qualifier,
+     * 1.0-sources is not a pre-release. Any other qualifier is ignored when comparing.
+     *
+     * @author Arsen
+     */
+    public static final class Version implements Comparable<Version> {
+        private static final String[] PRE_RELEASE = {"dev", "alpha", "beta", "pre", "rc", "snapshot"};
+
+        private final String text;
+        private final int[] components;
+        private final String qualifier;
+        private final int stage;
+        private final int stageNumber;
+
+        private Version(String text, int[] components, String qualifier) {
+            this.text = text;
+            this.components = components;
+            this.qualifier = qualifier;
+            int stage = PRE_RELEASE.length;
+            int stageNumber = 0;
+            if (qualifier != null) {
+                String lower = qualifier.toLowerCase(Locale.ROOT);
+                int i = 0;
+                while (i < lower.length() && stage == PRE_RELEASE.length) {
+                    if (!Character.isLetter(lower.charAt(i))) {
+                        i++;
+                        continue;
+                    }
+                    int start = i;
+                    while (i < lower.length() && Character.isLetter(lower.charAt(i)))
+                        i++;
+                    stage = Arrays.asList(PRE_RELEASE).indexOf(lower.substring(start, i));
+                    if (stage == -1) {
+                        stage = PRE_RELEASE.length;
+                        continue;
+                    }
+                    while (i < lower.length() && (lower.charAt(i) == '.' || lower.charAt(i) == '-' || lower.charAt(i) == '_'))
+                        i++;
+                    while (i < lower.length() && lower.charAt(i) >= '0' && lower.charAt(i) <= '9'
+                            && stageNumber <= (Integer.MAX_VALUE - 9) / 10)
+                        stageNumber = stageNumber * 10 + (lower.charAt(i++) - '0');
+                }
+            }
+            this.stage = stage;
+            this.stageNumber = stageNumber;
+        }
+
+        /**
+         * Parses a version, an optional leading 'v' is allowed
+         *
+         * @param text The version, for example 1.2.3-SNAPSHOT
+         * @return The version, or null if the text does not start with a number
+         */
+        public static Version parse(String text) {
+            if (text == null)
+                return null;
+            String version = text.trim();
+            if (version.length() > 0 && (version.charAt(0) == 'v' || version.charAt(0) == 'V'))
+                version = version.substring(1);
+            int i = 0;
+            int[] components = new int[4];
+            int count = 0;
+            int value = -1;
+            for (; i < version.length(); i++) {
+                char c = version.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    if (value > (Integer.MAX_VALUE - 9) / 10)
+                        return null;
+                    value = (value == -1 ? 0 : value * 10) + (c - '0');
+                } else if (c == '.' && value != -1 && i + 1 < version.length()
+                        && version.charAt(i + 1) >= '0' && version.charAt(i + 1) <= '9') {
+                    if (count == components.length)
+                        components = Arrays.copyOf(components, count * 2);
+                    components[count++] = value;
+                    value = -1;
+                } else {
+                    break;
+                }
+            }
+            if (value == -1)
+                return null;
+            if (count == components.length)
+                components = Arrays.copyOf(components, count + 1);
+            components[count++] = value;
+            while (count > 1 && components[count - 1] == 0)
+                count--;
+            String qualifier = version.substring(i).replaceFirst("^[-_+.]", "");
+            return new Version(version, Arrays.copyOf(components, count), qualifier.isEmpty() ? null : qualifier);
+        }
+
+        /**
+         * Parses the version at the end of a release name, such as "MyPlugin v1.2"
+         *
+         * @param name The release name
+         * @return The version, or null if the name does not end with one
+         */
+        public static Version fromName(String name) {
+            if (name == null)
+                return null;
+            String trimmed = name.trim();
+            int split = trimmed.length() - 1;
+            while (split >= 0 && !Character.isWhitespace(trimmed.charAt(split)))
+                split--;
+            if (split < 0)
+                return null;
+            return parse(trimmed.substring(split + 1));
+        }
+
+        /**
+         * Gets the qualifier, everything after the numeric components
+         *
+         * @return The qualifier without its separator, or null if there is none
+         */
+        public String getQualifier() {
+            return qualifier;
+        }
+
+        /**
+         * Checks is this a dev, alpha, beta, pre, rc or snapshot version
+         *
+         * @return true for pre-release versions
+         */
+        public boolean isPreRelease() {
+            return stage != PRE_RELEASE.length;
+        }
+
+        @Override
+        public int compareTo(Version other) {
+            int length = Math.max(components.length, other.components.length);
+            for (int i = 0; i < length; i++) {
+                int mine = i < components.length ? components[i] : 0;
+                int theirs = i < other.components.length ? other.components[i] : 0;
+                if (mine != theirs)
+                    return mine < theirs ? -1 : 1;
+            }
+            if (stage != other.stage)
+                return stage < other.stage ? -1 : 1;
+            return Integer.compare(stageNumber, other.stageNumber);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Version && compareTo((Version) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Arrays.hashCode(components) + stage) + stageNumber;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
     /**
      * Calculates files MD5 hash
      *
@@ -671,69 +1549,2488 @@ public class Updater {
      * @return The MD5 hex or null, if the operation failed
      */
     public String fileHash(File file) {
-        FileInputStream is;
+        return fileHash(file, HashAlgorithm.MD5);
+    }
+
+    /**
+     * Calculates a files hash<br>
+     * Hashes are remembered by path, size and modification time, so hashing an unchanged file again reads nothing.
+     *
+     * @param file      The file to digest
+     * @param algorithm The hash to calculate
+     * @return The hex of the hash or null, if the operation failed
+     */
+    public String fileHash(File file, HashAlgorithm algorithm) {
+        Map<HashAlgorithm, String> hashes = fileHashes(file, algorithm);
+        return hashes == null ? null : hashes.get(algorithm);
+    }
+
+    /**
+     * Calculates several hashes of a file in one read
+     *
+     * @param file       The file to digest
+     * @param algorithms The hashes to calculate
+     * @return The hex of every hash or null, if the operation failed
+     */
+    public Map<HashAlgorithm, String> fileHashes(File file, HashAlgorithm... algorithms) {
         try {
-            is = new FileInputStream(file);
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] bytes = new byte[2048];
-            int numBytes;
-            while ((numBytes = is.read(bytes)) != -1) {
-                md.update(bytes, 0, numBytes);
-            }
-            byte[] digest = md.digest();
-            char[] hexChars = new char[digest.length * 2];
-            for (int j = 0; j < digest.length; j++) {
-                int v = digest[j] & 0xFF;
-                hexChars[j * 2] = HEX_CHAR_ARRAY[v >>> 4];
-                hexChars[j * 2 + 1] = HEX_CHAR_ARRAY[v & 0x0F];
-            }
-            is.close();
-            return new String(hexChars);
-        } catch (IOException | NoSuchAlgorithmException e) {
+            return DigestCache.get(file, algorithms);
+        } catch (IOException e) {
             p.getLogger().log(Level.SEVERE, "Could not digest " + file.getPath(), e);
             return null;
         }
     }
 
     /**
-     * Called right after update is done
+     * The API host, read on every request so tests can point the updater at a local server
+     */
+    private static String host() {
+        return System.getProperty(HOST_PROPERTY, HOST);
+    }
+
+    private static MessageDigest md5() {
+        return HashAlgorithm.MD5.create();
+    }
+
+    private static String hex(byte[] digest) {
+        char[] hexChars = new char[digest.length * 2];
+        for (int j = 0; j < digest.length; j++) {
+            int v = digest[j] & 0xFF;
+            hexChars[j * 2] = HEX_CHAR_ARRAY[v >>> 4];
+            hexChars[j * 2 + 1] = HEX_CHAR_ARRAY[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
+    /**
+     * Sends the updater's HTTP requests<br>
+     * <br>
+     * A transport follows redirects itself, the response tells where it ended up.
      *
      * @author Arsen
      */
-    public interface UpdateCallback {
+    public interface Transport {
 
         /**
-         * Called after an update has completed
+         * Sends a request
          *
-         * @param updateResult Result of the update
-         * @param updater      Caller updater
+         * @param request The request
+         * @return The response, which must be closed
+         * @throws IOException If the server could not be reached
          */
-        void updated(UpdateResult updateResult, Updater updater);
+        Response send(Request request) throws IOException;
+
+        /**
+         * A request, the User-Agent header is always set
+         */
+        final class Request {
+            private final String method;
+            private final String url;
+            private final Map<String, String> headers = new LinkedHashMap<>();
+            private boolean compressed = false;
+
+            /**
+             * @param method GET or HEAD
+             * @param url    The URL
+             */
+            public Request(String method, String url) {
+                this.method = method;
+                this.url = url;
+                headers.put("User-Agent", AGENT);
+            }
+
+            /**
+             * Adds a header
+             *
+             * @return This request
+             */
+            public Request header(String name, String value) {
+                headers.put(name, value);
+                return this;
+            }
+
+            /**
+             * Allows a compressed response, only for bodies that are read whole
+             *
+             * @return This request
+             */
+            public Request compressed() {
+                compressed = true;
+                return this;
+            }
+
+            public String getMethod() {
+                return method;
+            }
+
+            public String getUrl() {
+                return url;
+            }
+
+            public Map<String, String> getHeaders() {
+                return Collections.unmodifiableMap(headers);
+            }
+
+            public boolean isCompressed() {
+                return compressed;
+            }
+        }
+
+        /**
+         * A response, closing it gives the connection back for reuse
+         */
+        interface Response extends Closeable {
+
+            /**
+             * @return The HTTP status code
+             */
+            int getStatus();
+
+            /**
+             * @return The URL the response came from, after redirects
+             */
+            String getUrl();
+
+            /**
+             * @return The value of a header, or null
+             */
+            String getHeader(String name);
+
+            /**
+             * @return The length of the body, or -1 if unknown
+             */
+            long getContentLength();
+
+            /**
+             * @return The body, already decompressed
+             */
+            InputStream getBody() throws IOException;
+        }
     }
 
-    private class SyncCallbackCaller extends BukkitRunnable {
-        private List<UpdateCallback> callbacks;
-        private UpdateResult updateResult;
-        private Updater updater;
+    /**
+     * The default transport, on HttpURLConnection<br>
+     * <br>
+     * Connections time out, at most ten redirects are followed and permanent ones are remembered, compressed
+     * bodies are asked for where allowed, and a 429 or 503 with a Retry-After is waited out and retried as long
+     * as the waits add up to no more than half a minute. The primary thread never waits, it gets the 429 or 503
+     * back so the check gives up instead of stalling the server. Bodies that are read to the end and closed leave the connection open for the JDK's
+     * keep-alive cache to reuse. HttpURLConnection only speaks HTTP/1.1, an HTTP/2 transport can be set with
+     * {@link #setTransport(Transport)} on newer JVMs.
+     */
+    private static final class UrlConnectionTransport implements Transport {
+        private static final int CONNECT_TIMEOUT = 10000;
+        private static final int READ_TIMEOUT = 30000;
+        private static final int MAX_REDIRECTS = 10;
+        private static final int MAX_RETRIES = 3;
+        private static final long MAX_RETRY_WAIT = 30000;
+
+        private final Map<String, String> permanent = Collections.synchronizedMap(new LinkedHashMap<String, String>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > 256;
+            }
+        });
+
+        @Override
+        public Response send(Request request) throws IOException {
+            String url = request.getUrl();
+            for (int hop = 0; hop < MAX_REDIRECTS && permanent.containsKey(url); hop++)
+                url = permanent.get(url);
+            int redirects = 0;
+            int retries = 0;
+            long waited = 0;
+            boolean primary = Bukkit.getServer() != null && Bukkit.getServer().isPrimaryThread();
+            while (true) {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                connection.setReadTimeout(READ_TIMEOUT);
+                connection.setInstanceFollowRedirects(false);
+                connection.setRequestMethod(request.getMethod());
+                for (Map.Entry<String, String> header : request.getHeaders().entrySet())
+                    connection.addRequestProperty(header.getKey(), header.getValue());
+                if (request.isCompressed())
+                    connection.addRequestProperty("Accept-Encoding", "gzip");
+                int status;
+                try {
+                    status = connection.getResponseCode();
+                } catch (IOException e) {
+                    connection.disconnect();
+                    throw e;
+                }
+                String location = connection.getHeaderField("Location");
+                if (status >= 300 && status < 400 && status != 304 && location != null) {
+                    if (++redirects > MAX_REDIRECTS) {
+                        connection.disconnect();
+                        throw new IOException("More than " + MAX_REDIRECTS + " redirects when requesting " + request.getUrl());
+                    }
+                    String next = new URL(new URL(url), location).toString();
+                    if (status == 301 || status == 308)
+                        permanent.put(url, next);
+                    discard(connection);
+                    url = next;
+                    continue;
+                }
+                if ((status == 429 || status == 503) && retries < MAX_RETRIES && !primary) {
+                    long wait = retryAfter(connection.getHeaderField("Retry-After"));
+                    if (wait >= 0 && waited + wait <= MAX_RETRY_WAIT) {
+                        discard(connection);
+                        retries++;
+                        waited += wait;
+                        try {
+                            Thread.sleep(wait);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while waiting to retry " + url);
+                        }
+                        continue;
+                    }
+                }
+                return new UrlConnectionResponse(connection, status, url);
+            }
+        }
 
-        public void run() {
-            for (UpdateCallback callback : callbacks) {
-                callback.updated(updateResult, updater);
+        /**
+         * @return Milliseconds to wait, or -1 if the header is missing or unreadable
+         */
+        private static long retryAfter(String header) {
+            if (header == null)
+                return -1;
+            try {
+                return Math.max(0, Long.parseLong(header.trim()) * 1000);
+            } catch (NumberFormatException ignored) {
+            }
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(header.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException ignored) {
+                return -1;
             }
         }
 
-        void call(List<UpdateCallback> callbacks, UpdateResult updateResult, Updater updater) {
-            this.callbacks = callbacks;
-            this.updateResult = updateResult;
-            this.updater = updater;
-            if (!Bukkit.getServer().isPrimaryThread())
-                runTask(updater.p);
-            else run();
+        /**
+         * Reads away a small body so the connection can be reused, larger ones close the connection
+         */
+        private static void discard(HttpURLConnection connection) {
+            try {
+                InputStream in = connection.getResponseCode() >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                if (in != null) {
+                    try (InputStream body = in) {
+                        byte[] buf = new byte[0x1000];
+                        long left = 0x10000;
+                        int r;
+                        while (left > 0 && (r = body.read(buf)) != -1)
+                            left -= r;
+                        if (left <= 0)
+                            connection.disconnect();
+                    }
+                }
+            } catch (IOException e) {
+                connection.disconnect();
+            }
         }
 
-    }
+        private static final class UrlConnectionResponse implements Response {
+            private final HttpURLConnection connection;
+            private final int status;
+            private final String url;
+            private InputStream body;
 
-    private class UpdateStructure {
-        public String downloadUrl, fileName, md5, name, releaseType;
+            private UrlConnectionResponse(HttpURLConnection connection, int status, String url) {
+                this.connection = connection;
+                this.status = status;
+                this.url = url;
+            }
+
+            @Override
+            public int getStatus() {
+                return status;
+            }
+
+            @Override
+            public String getUrl() {
+                return url;
+            }
+
+            @Override
+            public String getHeader(String name) {
+                return connection.getHeaderField(name);
+            }
+
+            @Override
+            public long getContentLength() {
+                return "gzip".equalsIgnoreCase(connection.getContentEncoding()) ? -1 : connection.getContentLengthLong();
+            }
+
+            @Override
+            public InputStream getBody() throws IOException {
+                if (body == null) {
+                    InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                    if (in == null)
+                        in = new ByteArrayInputStream(new byte[0]);
+                    if ("gzip".equalsIgnoreCase(connection.getContentEncoding()))
+                        in = new GZIPInputStream(in);
+                    body = in;
+                }
+                return body;
+            }
+
+            @Override
+            public void close() {
+                try {
+                    if (body != null)
+                        body.close();
+                    else
+                        discard(connection);
+                } catch (IOException e) {
+                    connection.disconnect();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called right after update is done
+     *
+     * @author Arsen
+     */
+    public interface UpdateCallback {
+
+        /**
+         * Called after an update has completed
+         *
+         * @param updateResult Result of the update
+         * @param updater      Caller updater
+         */
+        void updated(UpdateResult updateResult, Updater updater);
+    }
+
+    /**
+     * Hands update results to the callbacks on the primary thread<br>
+     * <br>
+     * Results from other threads are queued for every updater in this JVM and drained by a single task on the next
+     * tick, however many updaters finish at once. On the primary thread a result is handed out right away, after
+     * whatever was queued before it.
+     */
+    private static final class CallbackDispatcher {
+        private static final long STALE = 5000;
+        private static final Queue<Notification> pending = new ConcurrentLinkedQueue<>();
+        private static final AtomicLong scheduled = new AtomicLong();
+
+        static void dispatch(Updater updater, UpdateResult result) {
+            pending.add(new Notification(updater, result));
+            if (Bukkit.getServer().isPrimaryThread())
+                drain();
+            else
+                schedule();
+        }
+
+        /**
+         * Schedules the drain unless it already is, through the first queued plugin that can still schedule tasks<br>
+         * A drain that did not run for a while is assumed to be dropped along with its plugin and scheduled again.
+         */
+        private static void schedule() {
+            long now = System.currentTimeMillis();
+            long since = scheduled.get();
+            if ((since != 0 && now - since < STALE) || !scheduled.compareAndSet(since, now))
+                return;
+            for (Notification notification : pending) {
+                try {
+                    new BukkitRunnable() {
+                        @Override
+                        public void run() {
+                            scheduled.set(0);
+                            drain();
+                        }
+                    }.runTask(notification.updater.p);
+                    return;
+                } catch (RuntimeException ignored) {
+                    // The plugin was disabled, try the next one
+                }
+            }
+            scheduled.set(0);
+        }
+
+        private static void drain() {
+            Notification notification;
+            while ((notification = pending.poll()) != null) {
+                for (UpdateCallback callback : notification.updater.callbacks) {
+                    try {
+                        callback.updated(notification.result, notification.updater);
+                    } catch (RuntimeException e) {
+                        notification.updater.p.getLogger().log(Level.SEVERE, "An update callback of "
+                                + notification.updater.p.getName() + " failed", e);
+                    }
+                }
+            }
+        }
+
+        private static final class Notification {
+            private final Updater updater;
+            private final UpdateResult result;
+
+            Notification(Updater updater, UpdateResult result) {
+                this.updater = updater;
+                this.result = result;
+            }
+        }
+    }
+
+    private static class UpdateStructure {
+        public String downloadUrl, fileName, md5, name, releaseType;
+        public int projectId;
+    }
+
+    /**
+     * The newest release of a check, unparsed if a release that passed the filters had no version in its name
+     */
+    private static final class Selection {
+        final UpdateStructure release;
+        final Version version;
+        final boolean unparsed;
+
+        Selection(UpdateStructure release, Version version, boolean unparsed) {
+            this.release = release;
+            this.version = version;
+            this.unparsed = unparsed;
+        }
+    }
+
+    /**
+     * Thrown when the API answered, but not with a 200
+     */
+    private static class UnreachableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnreachableException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Collects the project IDs of every updater in this JVM that asks for a check and checks them with a single
+     * API request.<br>
+     * The first check opens a short window, the checks asked for during it are fetched together in the background.
+     * A check joins the open window and waits for it, at most for the rest of the window. A forced check, or one
+     * on the primary thread where no other plugin can check while it waits, flushes the window immediately and
+     * takes every pending ID along with it. Updaters that never check never reach the API.
+     */
+    private static final class CheckBatcher {
+        private static final long WINDOW = 1000;
+        private static final long RESULT_TTL = 60000;
+
+        private static final Map<Integer, List<UpdateStructure>> results = new HashMap<>();
+        private static final Map<Integer, Long> resultTimes = new HashMap<>();
+        private static final Map<Updater, Boolean> updaters = new WeakHashMap<>();
+        private static final Set<String> revalidating = new HashSet<>();
+        private static Batch open = new Batch();
+
+        /**
+         * Remembers an updater for the filters of its project, checks are only batched once they are asked for
+         */
+        static synchronized void register(Updater updater) {
+            updaters.put(updater, Boolean.TRUE);
+        }
+
+        /**
+         * Adds the project of a check that was asked for but still waits for a worker to the open window, so it is
+         * fetched with the others instead of opening a window of its own once it runs
+         */
+        static synchronized void expect(Updater updater) {
+            updaters.put(updater, Boolean.TRUE);
+            Long time = resultTimes.get(updater.id);
+            if (time != null && System.currentTimeMillis() - time < RESULT_TTL)
+                return;
+            open.ids.add(updater.id);
+            schedule(open);
+        }
+
+        /**
+         * Starts the window of a batch, unless it already runs
+         */
+        private static void schedule(final Batch batch) {
+            if (batch.flush != null)
+                return;
+            batch.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WINDOW);
+            batch.flush = Workers.schedule(Workers.Lane.BACKGROUND, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    flush(batch);
+                    return null;
+                }
+            }, WINDOW, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Gets the releases of a project that pass the filters of its updaters, batched with whatever else is pending
+         *
+         * @param updater The updater asking
+         * @param force   Skip results a recent batch already fetched
+         * @return The releases, oldest first
+         * @throws IOException If the API could not be reached
+         */
+        static List<UpdateStructure> fetch(Updater updater, boolean force) throws IOException {
+            int id = updater.id;
+            boolean join = !force && (Bukkit.getServer() == null || !Bukkit.getServer().isPrimaryThread());
+            Batch batch;
+            synchronized (CheckBatcher.class) {
+                updaters.put(updater, Boolean.TRUE);
+                List<UpdateStructure> cached = results.get(id);
+                if (!force && cached != null && System.currentTimeMillis() - resultTimes.get(id) < RESULT_TTL) {
+                    updater.metrics.cache(true);
+                    return cached;
+                }
+                open.ids.add(id);
+                open.force |= force;
+                batch = open;
+                if (join)
+                    schedule(batch);
+            }
+            try {
+                Map<Integer, List<UpdateStructure>> fetched = null;
+                if (join) {
+                    try {
+                        // Bounded, so a window whose flush is stuck behind busy workers is flushed by its waiters
+                        fetched = batch.result.get(Math.max(0, batch.deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    } catch (TimeoutException ignored) {
+                    }
+                }
+                if (fetched == null) {
+                    flush(batch);
+                    fetched = batch.result.get();
+                }
+                // Projects that were not cached went out in a batch of their own, the cached ones never wait for it
+                while (batch.rest != null && batch.rest.ids.contains(id)) {
+                    batch = batch.rest;
+                    flush(batch);
+                    fetched = batch.result.get();
+                }
+                List<UpdateStructure> releases = fetched.get(id);
+                updater.timings.putAll(batch.timings);
+                updater.metrics.cache(batch.cached);
+                return releases;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the update check");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new IOException(cause);
+            }
+        }
+
+        private static void flush(Batch batch) {
+            synchronized (CheckBatcher.class) {
+                if (batch.sent)
+                    return;
+                batch.sent = true;
+                if (batch.flush != null)
+                    batch.flush.cancel(false);
+                if (open == batch)
+                    open = new Batch();
+            }
+            try {
+                Map<Integer, List<UpdateStructure>> fetched = request(batch);
+                store(fetched);
+                batch.result.complete(fetched);
+            } catch (IOException | RuntimeException e) {
+                batch.result.completeExceptionally(e);
+            }
+        }
+
+        private static synchronized void store(Map<Integer, List<UpdateStructure>> fetched) {
+            long now = System.currentTimeMillis();
+            results.putAll(fetched);
+            for (int id : fetched.keySet())
+                resultTimes.put(id, now);
+        }
+
+        /**
+         * Answers the projects that have an entry in the response cache from it, revalidating them in the
+         * background, and hands the others to a batch of their own so they never hold up the cached answers.
+         * Only a forced check, or one with nothing cached, goes to the API for the whole batch.
+         */
+        private static Map<Integer, List<UpdateStructure>> request(Batch batch) throws IOException {
+            final Map<Integer, ResponseCache.Entry> cached = ResponseCache.get(batch.ids);
+            if (batch.force || cached.isEmpty()) {
+                Map<Integer, ResponseCache.Entry> entries = revalidate(batch.ids, cached, batch.timings);
+                batch.cached = entries == cached;
+                return parse(batch.ids, entries, batch.timings);
+            }
+            if (cached.size() < batch.ids.size()) {
+                final Batch rest = new Batch();
+                rest.ids.addAll(batch.ids);
+                rest.ids.removeAll(cached.keySet());
+                batch.rest = rest;
+                Workers.submit(Workers.Lane.BACKGROUND, new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        flush(rest);
+                        return null;
+                    }
+                });
+            }
+            final Set<Integer> ids = new TreeSet<>(cached.keySet());
+            final String key = ids.toString();
+            synchronized (CheckBatcher.class) {
+                if (revalidating.add(key)) {
+                    Workers.submit(Workers.Lane.BACKGROUND, new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            try {
+                                Map<Phase, Timing> ignored = new EnumMap<>(Phase.class);
+                                Map<Integer, ResponseCache.Entry> fresh = revalidate(ids, cached, ignored);
+                                if (fresh != cached)
+                                    store(parse(ids, fresh, ignored));
+                            } catch (IOException | RuntimeException ignored) {
+                                // The cached answer stays, the next check tries again
+                            } finally {
+                                synchronized (CheckBatcher.class) {
+                                    revalidating.remove(key);
+                                }
+                            }
+                            return null;
+                        }
+                    });
+                }
+            }
+            batch.cached = true;
+            return parse(ids, cached, batch.timings);
+        }
+
+        /**
+         * Sends a request for the IDs, conditional if every one of them is cached, a 304 keeps the cached entries
+         *
+         * @return The cached entries if they are still valid, otherwise the newly stored ones
+         */
+        private static Map<Integer, ResponseCache.Entry> revalidate(Set<Integer> ids, Map<Integer, ResponseCache.Entry> cached,
+                                                                    Map<Phase, Timing> timings) throws IOException {
+            Span span = new Span();
+            StringBuilder target = new StringBuilder(host() + QUERY);
+            for (Iterator<Integer> iterator = ids.iterator(); iterator.hasNext(); ) {
+                target.append(iterator.next());
+                if (iterator.hasNext())
+                    target.append(',');
+            }
+            Transport.Request request = new Transport.Request("GET", target.toString()).compressed();
+            boolean conditional = cached.size() == ids.size();
+            if (conditional) {
+                String etag = ResponseCache.etag(cached.values());
+                String lastModified = ResponseCache.lastModified(cached.values());
+                if (etag != null)
+                    request.header("If-None-Match", etag);
+                if (lastModified != null)
+                    request.header("If-Modified-Since", lastModified);
+            }
+            try (Transport.Response response = transport.send(request)) {
+                if (conditional && response.getStatus() == 304) {
+                    time(Phase.REQUEST, span, ids, 0, timings);
+                    return cached;
+                }
+                if (response.getStatus() != 200)
+                    throw new UnreachableException(response.getStatus() + " when requesting " + target);
+                LimitedInputStream body = new LimitedInputStream(response.getBody(), MAX_RESPONSE_BYTES);
+                Map<Integer, ResponseCache.Entry> entries = ResponseCache.put(ids, body,
+                        response.getHeader("ETag"), response.getHeader("Last-Modified"));
+                time(Phase.REQUEST, span, ids, body.read, timings);
+                return entries;
+            }
+        }
+
+        private static Map<Integer, List<UpdateStructure>> parse(Set<Integer> ids, Map<Integer, ResponseCache.Entry> entries,
+                                                                  Map<Phase, Timing> timings) throws IOException {
+            Span span = new Span();
+            Map<Integer, List<Updater>> filters = new HashMap<>();
+            synchronized (CheckBatcher.class) {
+                for (Updater updater : updaters.keySet()) {
+                    if (!ids.contains(updater.id))
+                        continue;
+                    List<Updater> filter = filters.get(updater.id);
+                    if (filter == null)
+                        filters.put(updater.id, filter = new ArrayList<>());
+                    filter.add(updater);
+                }
+            }
+            Map<Integer, List<UpdateStructure>> releases = new HashMap<>();
+            long bytes = 0;
+            for (ResponseCache.Entry entry : entries.values()) {
+                try (Reader reader = new InputStreamReader(new FileInputStream(entry.body), StandardCharsets.UTF_8)) {
+                    releases.putAll(ReleaseParser.parse(reader, Collections.singleton(entry.id), filters));
+                }
+                bytes += entry.body.length();
+            }
+            time(Phase.PARSE, span, ids, bytes, timings);
+            return releases;
+        }
+
+        /**
+         * Records a phase that ran for a whole batch, the flight recorder event names every plugin in it
+         */
+        private static void time(Phase phase, Span span, Set<Integer> ids, long bytes, Map<Phase, Timing> timings) {
+            timings.put(phase, new Timing(System.nanoTime() - span.start, bytes));
+            if (span.event == null)
+                return;
+            Set<String> plugins = new TreeSet<>();
+            synchronized (CheckBatcher.class) {
+                for (Updater updater : updaters.keySet()) {
+                    if (ids.contains(updater.id))
+                        plugins.add(updater.p.getName());
+                }
+            }
+            StringBuilder projects = new StringBuilder();
+            for (int id : ids) {
+                if (projects.length() != 0)
+                    projects.append(',');
+                projects.append(id);
+            }
+            StringBuilder names = new StringBuilder();
+            for (String plugin : plugins) {
+                if (names.length() != 0)
+                    names.append(',');
+                names.append(plugin);
+            }
+            Flight.commit(span.event, phase, names.toString(), projects.toString(), bytes);
+        }
+
+        private static final class Batch {
+            private final Set<Integer> ids = new TreeSet<>();
+            private final CompletableFuture<Map<Integer, List<UpdateStructure>>> result = new CompletableFuture<>();
+            private final Map<Phase, Timing> timings = new EnumMap<>(Phase.class);
+            private ScheduledFuture<?> flush;
+            private Batch rest;
+            private long deadline;
+            private boolean force = false;
+            private boolean sent = false;
+            private volatile boolean cached = false;
+        }
+    }
+
+    /**
+     * API responses on disk, one entry per project along with the headers needed to revalidate it<br>
+     * <br>
+     * A batched response is split by project as it is written, so a project is answered from the cache no matter
+     * which batch it was fetched in. Only the fields the updater reads are kept.
+     */
+    private static final class ResponseCache {
+
+        /**
+         * @return The entries of the given projects that are cached, missing ones are left out
+         */
+        static synchronized Map<Integer, Entry> get(Set<Integer> ids) {
+            Map<Integer, Entry> entries = new HashMap<>();
+            for (int id : ids) {
+                File body = new File(CACHE_DIR, id + ".json");
+                File meta = new File(CACHE_DIR, id + ".yml");
+                if (!body.isFile() || !meta.isFile())
+                    continue;
+                FileConfiguration config = YamlConfiguration.loadConfiguration(meta);
+                entries.put(id, new Entry(id, body, config.getString("etag"), config.getString("last-modified")));
+            }
+            return entries;
+        }
+
+        /**
+         * Splits a release list by project and stores an entry for every queried project, even those without releases
+         *
+         * @throws JsonParseException If the response is not a release list, nothing is stored then
+         */
+        static synchronized Map<Integer, Entry> put(Set<Integer> ids, InputStream in, String etag, String lastModified) throws IOException {
+            CACHE_DIR.mkdirs();
+            Integer single = ids.size() == 1 ? ids.iterator().next() : null;
+            Map<Integer, JsonWriter> writers = new HashMap<>();
+            boolean written = false;
+            try {
+                for (int id : ids) {
+                    JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(new File(CACHE_DIR, id + ".json.tmp")), StandardCharsets.UTF_8)));
+                    writers.put(id, writer);
+                    writer.beginArray();
+                }
+                JsonReader json = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                try {
+                    json.beginArray();
+                    while (json.hasNext()) {
+                        UpdateStructure structure = ReleaseParser.read(json);
+                        JsonWriter writer = writers.get(structure.projectId);
+                        if (writer == null && single != null) {
+                            structure.projectId = single;
+                            writer = writers.get(single);
+                        }
+                        if (writer != null)
+                            write(writer, structure);
+                    }
+                    json.endArray();
+                } catch (IllegalStateException | NumberFormatException | MalformedJsonException | EOFException e) {
+                    throw new JsonParseException(e);
+                }
+                for (JsonWriter writer : writers.values())
+                    writer.endArray();
+                written = true;
+            } finally {
+                for (JsonWriter writer : writers.values()) {
+                    try {
+                        writer.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                if (!written) {
+                    for (int id : writers.keySet())
+                        new File(CACHE_DIR, id + ".json.tmp").delete();
+                }
+            }
+            Map<Integer, Entry> entries = new HashMap<>();
+            for (int id : ids) {
+                File body = new File(CACHE_DIR, id + ".json");
+                Files.move(new File(CACHE_DIR, id + ".json.tmp").toPath(), body.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                FileConfiguration config = new YamlConfiguration();
+                config.set("etag", etag);
+                config.set("last-modified", lastModified);
+                config.save(new File(CACHE_DIR, id + ".yml"));
+                entries.put(id, new Entry(id, body, etag, lastModified));
+            }
+            return entries;
+        }
+
+        /**
+         * @return The ETag all entries share, as they do when they came from one response, otherwise null
+         */
+        static String etag(Collection<Entry> entries) {
+            String etag = null;
+            for (Entry entry : entries) {
+                if (entry.etag == null || (etag != null && !etag.equals(entry.etag)))
+                    return null;
+                etag = entry.etag;
+            }
+            return etag;
+        }
+
+        /**
+         * @return The oldest Last-Modified of the entries, or null if one of them has none
+         */
+        static String lastModified(Collection<Entry> entries) {
+            String oldest = null;
+            ZonedDateTime oldestDate = null;
+            for (Entry entry : entries) {
+                if (entry.lastModified == null)
+                    return null;
+                try {
+                    ZonedDateTime date = ZonedDateTime.parse(entry.lastModified, DateTimeFormatter.RFC_1123_DATE_TIME);
+                    if (oldestDate == null || date.isBefore(oldestDate)) {
+                        oldest = entry.lastModified;
+                        oldestDate = date;
+                    }
+                } catch (DateTimeParseException e) {
+                    return null;
+                }
+            }
+            return oldest;
+        }
+
+        private static void write(JsonWriter writer, UpdateStructure structure) throws IOException {
+            writer.beginObject();
+            writer.name("projectId").value(structure.projectId);
+            if (structure.name != null)
+                writer.name("name").value(structure.name);
+            if (structure.fileName != null)
+                writer.name("fileName").value(structure.fileName);
+            if (structure.downloadUrl != null)
+                writer.name("downloadUrl").value(structure.downloadUrl);
+            if (structure.md5 != null)
+                writer.name("md5").value(structure.md5);
+            if (structure.releaseType != null)
+                writer.name("releaseType").value(structure.releaseType);
+            writer.endObject();
+        }
+
+        static final class Entry {
+            private final int id;
+            private final File body;
+            private final String etag;
+            private final String lastModified;
+
+            private Entry(int id, File body, String etag, String lastModified) {
+                this.id = id;
+                this.body = body;
+                this.etag = etag;
+                this.lastModified = lastModified;
+            }
+        }
+    }
+
+    /**
+     * Reads a release list straight off the stream, keeping only the fields the updater needs and only the
+     * releases some updater of that project would accept
+     */
+    private static final class ReleaseParser {
+
+        /**
+         * @param reader  The API response
+         * @param ids     The queried project IDs
+         * @param filters The updaters of each project, whose channels and skip tags decide what is kept
+         * @return Accepted releases of every queried project, oldest first
+         * @throws IOException        If the response could not be read
+         * @throws JsonParseException If the response is not a release list
+         */
+        static Map<Integer, List<UpdateStructure>> parse(Reader reader, Set<Integer> ids,
+                                                         Map<Integer, List<Updater>> filters) throws IOException {
+            Map<Integer, List<UpdateStructure>> releases = new HashMap<>();
+            for (int id : ids)
+                releases.put(id, new ArrayList<UpdateStructure>());
+            Integer single = ids.size() == 1 ? ids.iterator().next() : null;
+            JsonReader json = new JsonReader(reader);
+            try {
+                json.beginArray();
+                while (json.hasNext()) {
+                    UpdateStructure structure = read(json);
+                    List<UpdateStructure> project = releases.get(structure.projectId);
+                    if (project == null && single != null) {
+                        structure.projectId = single;
+                        project = releases.get(single);
+                    }
+                    if (project != null && accepted(structure, filters.get(structure.projectId)))
+                        project.add(structure);
+                }
+                json.endArray();
+            } catch (IllegalStateException | NumberFormatException | MalformedJsonException | EOFException e) {
+                throw new JsonParseException(e);
+            }
+            return releases;
+        }
+
+        private static UpdateStructure read(JsonReader json) throws IOException {
+            UpdateStructure structure = new UpdateStructure();
+            json.beginObject();
+            while (json.hasNext()) {
+                String field = json.nextName();
+                if (json.peek() == JsonToken.NULL) {
+                    json.nextNull();
+                    continue;
+                }
+                switch (field) {
+                    case "downloadUrl":
+                        structure.downloadUrl = json.nextString();
+                        break;
+                    case "fileName":
+                        structure.fileName = json.nextString();
+                        break;
+                    case "md5":
+                        structure.md5 = json.nextString();
+                        break;
+                    case "name":
+                        structure.name = json.nextString();
+                        break;
+                    case "releaseType":
+                        structure.releaseType = json.nextString();
+                        break;
+                    case "projectId":
+                        structure.projectId = json.nextInt();
+                        break;
+                    default:
+                        json.skipValue();
+                }
+            }
+            json.endObject();
+            return structure;
+        }
+
+        private static boolean accepted(UpdateStructure structure, List<Updater> filter) {
+            if (structure.name == null)
+                return false;
+            if (filter == null)
+                return true;
+            for (Updater updater : filter) {
+                if (updater.accepts(structure.releaseType, structure.name))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Takes tokens from a throttle for every byte read
+     */
+    private static final class ThrottledInputStream extends FilterInputStream {
+        private final Throttle throttle;
+
+        ThrottledInputStream(InputStream in, Throttle throttle) {
+            super(in);
+            this.throttle = throttle;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                throttle.acquire(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int r = super.read(b, off, len);
+            if (r > 0)
+                throttle.acquire(r);
+            return r;
+        }
+    }
+
+    /**
+     * Fails once more than a given amount of bytes was read
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+        private long read = 0;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int r = super.read(b, off, len);
+            if (r > 0)
+                count(r);
+            return r;
+        }
+
+        private void count(int bytes) throws IOException {
+            read += bytes;
+            if (read > limit)
+                throw new IOException("Response is larger than " + limit + " bytes");
+        }
+    }
+
+    /**
+     * Backups stored once per content hash<br>
+     * <br>
+     * Every jar is kept as blobs/&lt;sha256&gt;.jar, the usual backup-&lt;millis&gt;-&lt;name&gt;.jar files are
+     * hard links to those, or copies where the file system has no hard links. index.yml maps each plugin's
+     * backups to their version and hash. The hash comes from the {@link DigestCache}, so backing up an unchanged
+     * jar reads nothing.
+     */
+    private static final class BackupStore {
+        private static final File BLOB_DIR = new File(BACKUP_DIR, "blobs" + File.separator);
+        private static final File INDEX_FILE = new File(BACKUP_DIR, "index.yml");
+
+        /**
+         * Backs a jar up, unless the newest backup of the plugin already has the same contents
+         *
+         * @return The backup file
+         */
+        static synchronized File backup(File jar, String plugin, String version) throws IOException {
+            BLOB_DIR.mkdirs();
+            FileConfiguration index = YamlConfiguration.loadConfiguration(INDEX_FILE);
+            String hash = DigestCache.get(jar, HashAlgorithm.SHA256).get(HashAlgorithm.SHA256);
+
+            List<Long> times = times(index, plugin);
+            if (!times.isEmpty()) {
+                String newest = "backups." + plugin + "." + times.get(0);
+                File existing = new File(BACKUP_DIR, index.getString(newest + ".file", ""));
+                if (hash.equals(index.getString(newest + ".hash")) && existing.isFile())
+                    return existing;
+            }
+
+            File blob = new File(BLOB_DIR, hash + ".jar");
+            if (!blob.isFile()) {
+                File temp = new File(BLOB_DIR, hash + ".jar.tmp");
+                copy(new FileInputStream(jar), new FileOutputStream(temp), false);
+                Files.move(temp.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            long now = System.currentTimeMillis();
+            File backup = new File(BACKUP_DIR, "backup-" + now + "-" + plugin + ".jar");
+            try {
+                Files.createLink(backup.toPath(), blob.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                copy(new FileInputStream(blob), new FileOutputStream(backup), false);
+            }
+            String entry = "backups." + plugin + "." + now;
+            index.set(entry + ".version", version);
+            index.set(entry + ".hash", hash);
+            index.set(entry + ".file", backup.getName());
+            index.save(INDEX_FILE);
+            return backup;
+        }
+
+        /**
+         * Removes the backups of a plugin past the count or age limit, the newest one always stays<br>
+         * Blobs no backup points to anymore are removed too.
+         *
+         * @param keep   How many backups to keep, 0 or less for no limit
+         * @param maxAge How old a backup may get in milliseconds, 0 or less for no limit
+         */
+        static synchronized void prune(String plugin, int keep, long maxAge) throws IOException {
+            FileConfiguration index = YamlConfiguration.loadConfiguration(INDEX_FILE);
+            List<Long> times = times(index, plugin);
+            long now = System.currentTimeMillis();
+            boolean changed = false;
+            for (int i = 1; i < times.size(); i++) {
+                long time = times.get(i);
+                if ((keep > 0 && i >= keep) || (maxAge > 0 && now - time > maxAge)) {
+                    String entry = "backups." + plugin + "." + time;
+                    new File(BACKUP_DIR, index.getString(entry + ".file", "")).delete();
+                    index.set(entry, null);
+                    changed = true;
+                }
+            }
+            if (!changed)
+                return;
+            index.save(INDEX_FILE);
+
+            Set<String> used = new HashSet<>();
+            ConfigurationSection backups = index.getConfigurationSection("backups");
+            if (backups != null) {
+                for (String entry : backups.getKeys(true)) {
+                    if (entry.endsWith(".hash"))
+                        used.add(String.valueOf(backups.get(entry)));
+                }
+            }
+            File[] blobs = BLOB_DIR.listFiles();
+            if (blobs != null) {
+                for (File blob : blobs) {
+                    if (!used.contains(blob.getName().replace(".jar", "")))
+                        blob.delete();
+                }
+            }
+        }
+
+        /**
+         * @return Backup times of a plugin, newest first
+         */
+        private static List<Long> times(FileConfiguration index, String plugin) {
+            List<Long> times = new ArrayList<>();
+            ConfigurationSection section = index.getConfigurationSection("backups." + plugin);
+            if (section != null) {
+                for (String key : section.getKeys(false)) {
+                    try {
+                        times.add(Long.parseLong(key));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            Collections.sort(times, Collections.reverseOrder());
+            return times;
+        }
+
+    }
+
+    /**
+     * Remembers file hashes in digests.yml by path, size and modification time<br>
+     * <br>
+     * Files are read through one large direct buffer per thread, every asked hash is calculated in the same pass.
+     * A hash is only remembered if the file did not change while it was read.
+     */
+    private static final class DigestCache {
+        private static final File CACHE_FILE = new File(WORKING_DIR, "digests.yml");
+        private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocateDirect(0x100000);
+            }
+        };
+        private static FileConfiguration cache;
+
+        static Map<HashAlgorithm, String> get(File file, HashAlgorithm... algorithms) throws IOException {
+            String key = hex(md5().digest(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8)));
+            long size = file.length();
+            long modified = file.lastModified();
+            Map<HashAlgorithm, String> hashes = new EnumMap<>(HashAlgorithm.class);
+            Set<HashAlgorithm> missing = EnumSet.noneOf(HashAlgorithm.class);
+            synchronized (DigestCache.class) {
+                FileConfiguration cache = load();
+                boolean fresh = cache.getLong(key + ".size", -1) == size && cache.getLong(key + ".modified", -1) == modified;
+                for (HashAlgorithm algorithm : algorithms) {
+                    String hash = fresh ? cache.getString(key + "." + algorithm.name().toLowerCase()) : null;
+                    if (hash == null)
+                        missing.add(algorithm);
+                    else
+                        hashes.put(algorithm, hash);
+                }
+            }
+            if (missing.isEmpty())
+                return hashes;
+
+            Map<HashAlgorithm, String> computed = digest(file, missing);
+            hashes.putAll(computed);
+            if (file.length() != size || file.lastModified() != modified)
+                return hashes;
+            synchronized (DigestCache.class) {
+                FileConfiguration cache = load();
+                if (cache.getLong(key + ".size", -1) != size || cache.getLong(key + ".modified", -1) != modified) {
+                    cache.set(key, null);
+                    cache.set(key + ".path", file.getAbsolutePath());
+                    cache.set(key + ".size", size);
+                    cache.set(key + ".modified", modified);
+                }
+                for (Map.Entry<HashAlgorithm, String> hash : computed.entrySet())
+                    cache.set(key + "." + hash.getKey().name().toLowerCase(), hash.getValue());
+                WORKING_DIR.mkdirs();
+                cache.save(CACHE_FILE);
+            }
+            return hashes;
+        }
+
+        /**
+         * Hashes a file without looking at the cache
+         */
+        static Map<HashAlgorithm, String> digest(File file, Set<HashAlgorithm> algorithms) throws IOException {
+            Map<HashAlgorithm, MessageDigest> digests = new EnumMap<>(HashAlgorithm.class);
+            for (HashAlgorithm algorithm : algorithms)
+                digests.put(algorithm, algorithm.create());
+            ByteBuffer buf = buffers.get();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                buf.clear();
+                while (channel.read(buf) != -1) {
+                    buf.flip();
+                    for (MessageDigest md : digests.values()) {
+                        buf.mark();
+                        md.update(buf);
+                        buf.reset();
+                    }
+                    buf.clear();
+                }
+            }
+            Map<HashAlgorithm, String> hashes = new EnumMap<>(HashAlgorithm.class);
+            for (Map.Entry<HashAlgorithm, MessageDigest> md : digests.entrySet())
+                hashes.put(md.getKey(), hex(md.getValue().digest()));
+            return hashes;
+        }
+
+        /**
+         * Loads the cache once, forgetting files that are gone
+         */
+        private static FileConfiguration load() {
+            if (cache == null) {
+                cache = YamlConfiguration.loadConfiguration(CACHE_FILE);
+                for (String key : cache.getKeys(false)) {
+                    String path = cache.getString(key + ".path");
+                    if (path == null || !new File(path).isFile())
+                        cache.set(key, null);
+                }
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Writes updater.log from a single background thread<br>
+     * <br>
+     * Lines are timestamped when they are logged and queued, the writer takes whatever has queued up and writes
+     * it in one go. The log is rotated to updater.log.1 through updater.log.5 once it gets too large or a new day
+     * starts. When the queue is full lines are dropped and counted, never waited for.
+     */
+    private static final class LogAppender {
+        private static final int QUEUE_SIZE = 4096;
+        private static final long MAX_SIZE = 1024 * 1024;
+        private static final int ROTATIONS = 5;
+        private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+        private static final BlockingQueue<Line> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        private static final AtomicLong dropped = new AtomicLong();
+        private static volatile Stamp stamp = new Stamp(0, "");
+        private static Thread writer;
+
+        static void append(String message, Logger logger) {
+            if (!queue.offer(new Line(timestamp() + message, logger))) {
+                dropped.incrementAndGet();
+                return;
+            }
+            start();
+        }
+
+        /**
+         * Formats the current second, reusing the last result while the second did not change
+         */
+        private static String timestamp() {
+            long second = System.currentTimeMillis() / 1000;
+            Stamp last = stamp;
+            if (last.second != second) {
+                last = new Stamp(second, "[" + FORMAT.format(LocalDateTime.now()) + "] ");
+                stamp = last;
+            }
+            return last.text;
+        }
+
+        private static synchronized void start() {
+            if (writer != null)
+                return;
+            writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    List<Line> batch = new ArrayList<>();
+                    while (true) {
+                        try {
+                            batch.add(queue.take());
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        queue.drainTo(batch);
+                        write(batch);
+                        batch.clear();
+                    }
+                }
+            }, "Updater log");
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    List<Line> batch = new ArrayList<>();
+                    queue.drainTo(batch);
+                    if (!batch.isEmpty())
+                        write(batch);
+                }
+            }, "Updater log flush"));
+        }
+
+        private static synchronized void write(List<Line> batch) {
+            try {
+                rotate();
+                StringBuilder text = new StringBuilder();
+                long lost = dropped.getAndSet(0);
+                if (lost != 0)
+                    text.append(timestamp()).append(lost).append(" lines were dropped, the log queue was full")
+                            .append(System.lineSeparator());
+                for (Line line : batch)
+                    text.append(line.text).append(System.lineSeparator());
+                LOG_FILE.getParentFile().mkdirs();
+                Files.write(LOG_FILE.toPath(), text.toString().getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                batch.get(0).logger.log(Level.SEVERE, "Could not log to " + LOG_FILE.getAbsolutePath() + "!", e);
+            }
+        }
+
+        private static void rotate() throws IOException {
+            if (!LOG_FILE.isFile())
+                return;
+            LocalDate modified = Instant.ofEpochMilli(LOG_FILE.lastModified()).atZone(ZoneId.systemDefault()).toLocalDate();
+            if (LOG_FILE.length() < MAX_SIZE && modified.equals(LocalDate.now()))
+                return;
+            for (int i = ROTATIONS - 1; i > 0; i--) {
+                File older = new File(LOG_FILE.getPath() + "." + i);
+                if (older.isFile())
+                    Files.move(older.toPath(), new File(LOG_FILE.getPath() + "." + (i + 1)).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(LOG_FILE.toPath(), new File(LOG_FILE.getPath() + ".1").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        private static final class Line {
+            private final String text;
+            private final Logger logger;
+
+            private Line(String text, Logger logger) {
+                this.text = text;
+                this.logger = logger;
+            }
+        }
+
+        private static final class Stamp {
+            private final long second;
+            private final String text;
+
+            private Stamp(long second, String text) {
+                this.second = second;
+                this.text = text;
+            }
+        }
+    }
+
+    /**
+     * Downloads a file in parallel segments with HTTP range requests<br>
+     * <br>
+     * Progress is kept in &lt;file&gt;.progress next to the partial &lt;file&gt;.part, so a download that was
+     * interrupted continues where it stopped as long as the remote file has the same MD5 and size.
+     */
+    private static final class RangedDownload {
+        private static final long MIN_SEGMENT = 1024 * 1024;
+        private static final int MAX_SEGMENTS = 4;
+        private static final long SAVE_INTERVAL = 1000;
+
+        private final String url;
+        private final String md5;
+        private final File target;
+        private final File part;
+        private final File progress;
+        private final long length;
+        private final long[] starts;
+        private final long[] ends;
+        private final long[] done;
+        private long saved = 0;
+
+        private RangedDownload(String url, String md5, File target, long length, long[] starts, long[] ends, long[] done) {
+            this.url = url;
+            this.md5 = md5;
+            this.target = target;
+            this.part = new File(target.getPath() + ".part");
+            this.progress = new File(target.getPath() + ".progress");
+            this.length = length;
+            this.starts = starts;
+            this.ends = ends;
+            this.done = done;
+        }
+
+        /**
+         * Asks the server whether it serves ranges of the file
+         *
+         * @param url    The file to download
+         * @param md5    The expected MD5, identifies the file when resuming
+         * @param target Where the file goes
+         * @return The download, or null if the server does not support ranges
+         */
+        static RangedDownload open(String url, String md5, File target) throws IOException {
+            long length;
+            try (Transport.Response response = transport.send(new Transport.Request("HEAD", url))) {
+                if (response.getStatus() != 200 || !"bytes".equalsIgnoreCase(response.getHeader("Accept-Ranges")))
+                    return null;
+                length = response.getContentLength();
+                url = response.getUrl();
+            }
+            if (length <= 0 || md5 == null)
+                return null;
+
+            File part = new File(target.getPath() + ".part");
+            File progress = new File(target.getPath() + ".progress");
+            if (part.isFile() && progress.isFile()) {
+                FileConfiguration saved = YamlConfiguration.loadConfiguration(progress);
+                int segments = saved.getInt("segments", 0);
+                if (md5.equalsIgnoreCase(saved.getString("md5")) && saved.getLong("length", -1) == length && segments > 0) {
+                    long[] starts = new long[segments];
+                    long[] ends = new long[segments];
+                    long[] done = new long[segments];
+                    for (int i = 0; i < segments; i++) {
+                        starts[i] = saved.getLong("segment." + i + ".start", 0);
+                        ends[i] = saved.getLong("segment." + i + ".end", 0);
+                        done[i] = saved.getLong("segment." + i + ".done", 0);
+                    }
+                    return new RangedDownload(url, md5, target, length, starts, ends, done);
+                }
+            }
+            part.delete();
+            int segments = (int) Math.max(1, Math.min(MAX_SEGMENTS, length / MIN_SEGMENT));
+            long[] starts = new long[segments];
+            long[] ends = new long[segments];
+            long size = length / segments;
+            for (int i = 0; i < segments; i++) {
+                starts[i] = i * size;
+                ends[i] = i == segments - 1 ? length - 1 : (i + 1) * size - 1;
+            }
+            return new RangedDownload(url, md5, target, length, starts, ends, new long[segments]);
+        }
+
+        /**
+         * Downloads every unfinished segment and moves the assembled file to the target
+         *
+         * @throws IOException If a segment failed, the progress so far is kept
+         */
+        void run() throws IOException {
+            List<Future<?>> segments = new ArrayList<>();
+            try (final FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                for (int i = 0; i < starts.length; i++) {
+                    final int segment = i;
+                    if (done[segment] < ends[segment] - starts[segment] + 1)
+                        segments.add(Workers.offload(new Callable<Void>() {
+                            @Override
+                            public Void call() throws IOException {
+                                segment(segment, channel);
+                                return null;
+                            }
+                        }));
+                }
+                IOException failure = null;
+                for (Future<?> segment : segments) {
+                    try {
+                        segment.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        failure = new InterruptedIOException("Interrupted while downloading " + target.getName());
+                    } catch (ExecutionException e) {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                }
+                save(true);
+                if (failure != null)
+                    throw failure;
+            } finally {
+                for (Future<?> segment : segments)
+                    segment.cancel(true);
+            }
+            Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            progress.delete();
+        }
+
+        private void segment(int segment, FileChannel channel) throws IOException {
+            long position = starts[segment] + done[segment];
+            Transport.Request request = new Transport.Request("GET", url)
+                    .header("Range", "bytes=" + position + "-" + ends[segment]);
+            try (Transport.Response response = transport.send(request)) {
+                if (response.getStatus() != 206)
+                    throw new IOException(response.getStatus() + " instead of 206 when requesting a range of " + url);
+                InputStream in = response.getBody();
+                byte[] buf = new byte[0x10000];
+                while (position <= ends[segment]) {
+                    int r = in.read(buf, 0, (int) Math.min(buf.length, ends[segment] - position + 1));
+                    if (r == -1)
+                        throw new EOFException("Segment " + segment + " of " + url + " ended early");
+                    if (Thread.currentThread().isInterrupted())
+                        throw new InterruptedIOException("Cancelled");
+                    Throttle.NETWORK.acquire(r);
+                    Throttle.DISK.acquire(r);
+                    ByteBuffer buffer = ByteBuffer.wrap(buf, 0, r);
+                    while (buffer.hasRemaining())
+                        position += channel.write(buffer, position);
+                    synchronized (this) {
+                        done[segment] = position - starts[segment];
+                    }
+                    save(false);
+                }
+            }
+        }
+
+        private synchronized void save(boolean now) throws IOException {
+            if (!now && System.currentTimeMillis() - saved < SAVE_INTERVAL)
+                return;
+            saved = System.currentTimeMillis();
+            FileConfiguration config = new YamlConfiguration();
+            config.set("md5", md5);
+            config.set("length", length);
+            config.set("segments", starts.length);
+            for (int i = 0; i < starts.length; i++) {
+                config.set("segment." + i + ".start", starts[i]);
+                config.set("segment." + i + ".end", ends[i]);
+                config.set("segment." + i + ".done", done[i]);
+            }
+            config.save(progress);
+        }
+    }
+
+    /**
+     * A token bucket shared by every updater, holding at most one second worth of bytes
+     */
+    private static final class Throttle {
+        static final Throttle NETWORK = new Throttle();
+        static final Throttle DISK = new Throttle();
+
+        private volatile long rate = 0;
+        private double tokens = 0;
+        private long last = System.nanoTime();
+
+        /**
+         * @param rate Bytes per second, 0 or less for no limit
+         */
+        void setRate(long rate) {
+            this.rate = rate;
+        }
+
+        /**
+         * Takes tokens for the given bytes, sleeping until the bucket has refilled if it went short
+         */
+        void acquire(long bytes) throws InterruptedIOException {
+            long rate = this.rate;
+            if (rate <= 0)
+                return;
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                tokens = Math.min(rate, tokens + (now - last) * (double) rate / 1000000000L);
+                last = now;
+                tokens -= bytes;
+                wait = tokens < 0 ? (long) (-tokens * 1000000000L / rate) : 0;
+            }
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+            }
+        }
+    }
+
+    /**
+     * The one executor all updater work runs on<br>
+     * <br>
+     * It runs at most executor.threads tasks at once. Interactive work, such as a check an admin asked for,
+     * is always taken from the queue before background downloads and revalidations. With
+     * executor.virtual-threads the workers are virtual threads, on JVMs that have them.<br>
+     * <br>
+     * Work a worker waits for, such as the backup copy next to a download, the segments of a ranged download
+     * and the entries of a zip, runs on a second pool of the same size instead. Queued behind the workers it
+     * could never start once every worker is waiting for one.<br>
+     * <br>
+     * Lanes only order the queue. An interactive check does not preempt a download that is already running,
+     * it waits for a free worker like everything else.
+     */
+    private static final class Workers {
+        private static final AtomicLong sequence = new AtomicLong();
+        private static final Map<Lane, AtomicInteger> queued = new EnumMap<>(Lane.class);
+        private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Updater timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        private static int threads = 2;
+        private static boolean virtual = false;
+        private static ThreadPoolExecutor executor;
+        private static ThreadPoolExecutor offloaded;
+
+        static {
+            for (Lane lane : Lane.values())
+                queued.put(lane, new AtomicInteger());
+        }
+
+        enum Lane {
+            INTERACTIVE, BACKGROUND
+        }
+
+        /**
+         * Sets the concurrency limit, the thread kind only applies if no work was submitted yet
+         */
+        static synchronized void configure(int threads, boolean virtual) {
+            Workers.threads = Math.max(1, threads);
+            Workers.virtual = virtual;
+            resize(executor);
+            resize(offloaded);
+        }
+
+        private static void resize(ThreadPoolExecutor pool) {
+            if (pool != null && pool.getMaximumPoolSize() != threads) {
+                if (threads > pool.getMaximumPoolSize()) {
+                    pool.setMaximumPoolSize(threads);
+                    pool.setCorePoolSize(threads);
+                } else {
+                    pool.setCorePoolSize(threads);
+                    pool.setMaximumPoolSize(threads);
+                }
+            }
+        }
+
+        static <T> CompletableFuture<T> submit(Lane lane, Callable<T> task) {
+            final Job<T> job = new Job<>(task);
+            executor().execute(new Task(lane, sequence.getAndIncrement()) {
+                @Override
+                void work() {
+                    job.run();
+                }
+            });
+            return job.future;
+        }
+
+        /**
+         * Runs a task that a worker is going to wait for, on the second pool
+         */
+        static <T> CompletableFuture<T> offload(Callable<T> task) {
+            Job<T> job = new Job<>(task);
+            offloaded().execute(job);
+            return job.future;
+        }
+
+        /**
+         * Runs a task on someone else's executor, with the same cancellation as on the workers
+         */
+        static <T> CompletableFuture<T> submit(Executor executor, Callable<T> task) {
+            Job<T> job = new Job<>(task);
+            executor.execute(job);
+            return job.future;
+        }
+
+        /**
+         * Submits a task once the delay has passed, the timer thread itself never runs updater work
+         */
+        static ScheduledFuture<?> schedule(final Lane lane, final Callable<?> task, long delay, TimeUnit unit) {
+            return timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    submit(lane, task);
+                }
+            }, delay, unit);
+        }
+
+        static int queued(Lane lane) {
+            return queued.get(lane).get();
+        }
+
+        /**
+         * Loads the config first, outside the lock, since loading it configures the workers
+         */
+        private static ThreadPoolExecutor executor() {
+            GlobalConfig.get();
+            synchronized (Workers.class) {
+                if (executor == null) {
+                    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                            new PriorityBlockingQueue<Runnable>(), factory("Updater worker "));
+                    executor.allowCoreThreadTimeOut(true);
+                }
+                return executor;
+            }
+        }
+
+        private static ThreadPoolExecutor offloaded() {
+            GlobalConfig.get();
+            synchronized (Workers.class) {
+                if (offloaded == null) {
+                    offloaded = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(), factory("Updater offload "));
+                    offloaded.allowCoreThreadTimeOut(true);
+                }
+                return offloaded;
+            }
+        }
+
+        private static ThreadFactory factory(final String name) {
+            if (virtual) {
+                try {
+                    Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                    Class<?> type = Class.forName("java.lang.Thread$Builder");
+                    builder = type.getMethod("name", String.class, long.class).invoke(builder, name, 0L);
+                    return (ThreadFactory) type.getMethod("factory").invoke(builder);
+                } catch (ReflectiveOperationException ignored) {
+                    // No virtual threads on this JVM
+                }
+            }
+            return new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, name + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+        }
+
+        /**
+         * Completes a future with the task's result, cancelling the future interrupts the task if it is running
+         */
+        private static final class Job<T> implements Runnable {
+            private final Callable<T> task;
+            private final CompletableFuture<T> future = new CompletableFuture<>();
+            private Thread runner;
+
+            Job(Callable<T> task) {
+                this.task = task;
+                future.whenComplete(new BiConsumer<T, Throwable>() {
+                    @Override
+                    public void accept(T result, Throwable throwable) {
+                        synchronized (Job.this) {
+                            if (future.isCancelled() && runner != null)
+                                runner.interrupt();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void run() {
+                synchronized (this) {
+                    if (future.isDone())
+                        return;
+                    runner = Thread.currentThread();
+                }
+                try {
+                    future.complete(task.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                } finally {
+                    synchronized (this) {
+                        runner = null;
+                    }
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        private abstract static class Task implements Runnable, Comparable<Task> {
+            private final Lane lane;
+            private final long order;
+
+            Task(Lane lane, long order) {
+                this.lane = lane;
+                this.order = order;
+                queued.get(lane).incrementAndGet();
+            }
+
+            abstract void work();
+
+            @Override
+            public void run() {
+                queued.get(lane).decrementAndGet();
+                work();
+            }
+
+            @Override
+            public int compareTo(Task other) {
+                if (lane != other.lane)
+                    return lane.compareTo(other.lane);
+                return Long.compare(order, other.order);
+            }
+        }
+    }
+
+    /**
+     * An immutable snapshot of global.yml, loaded once per JVM when it is first needed<br>
+     * <br>
+     * The file is created with defaults if it is missing, and a watcher thread takes a new snapshot whenever
+     * it changes, so updaters never read it themselves.
+     */
+    private static final class GlobalConfig {
+        private static final Logger LOGGER = Logger.getLogger(Updater.class.getName());
+        private static volatile GlobalConfig current;
+
+        private final boolean update;
+        private final long networkRate;
+        private final long diskRate;
+        private final int threads;
+        private final boolean virtualThreads;
+        private final int backupKeep;
+        private final int backupMaxAgeDays;
+        private final Map<String, Integer> pluginKeep = new HashMap<>();
+        private final Map<String, Integer> pluginMaxAgeDays = new HashMap<>();
+
+        private GlobalConfig(FileConfiguration global) {
+            update = global.getBoolean("update", true);
+            networkRate = global.getLong("throttle.network-bytes-per-second", 0);
+            diskRate = global.getLong("throttle.disk-bytes-per-second", 0);
+            threads = global.getInt("executor.threads", 2);
+            virtualThreads = global.getBoolean("executor.virtual-threads", false);
+            backupKeep = global.getInt("backups.keep", 5);
+            backupMaxAgeDays = global.getInt("backups.max-age-days", 30);
+            ConfigurationSection plugins = global.getConfigurationSection("backups.plugins");
+            if (plugins != null) {
+                for (String plugin : plugins.getKeys(false)) {
+                    pluginKeep.put(plugin, plugins.getInt(plugin + ".keep", backupKeep));
+                    pluginMaxAgeDays.put(plugin, plugins.getInt(plugin + ".max-age-days", backupMaxAgeDays));
+                }
+            }
+        }
+
+        static GlobalConfig get() {
+            GlobalConfig config = current;
+            if (config == null) {
+                boolean loaded = false;
+                synchronized (GlobalConfig.class) {
+                    if (current == null) {
+                        current = load();
+                        loaded = true;
+                        watch();
+                    }
+                    config = current;
+                }
+                // Not under the lock, the workers take their own lock and may be waiting for this one
+                if (loaded)
+                    config.apply();
+            }
+            return config;
+        }
+
+        int backupKeep(String plugin) {
+            Integer keep = pluginKeep.get(plugin);
+            return keep == null ? backupKeep : keep;
+        }
+
+        int backupMaxAgeDays(String plugin) {
+            Integer days = pluginMaxAgeDays.get(plugin);
+            return days == null ? backupMaxAgeDays : days;
+        }
+
+        private static GlobalConfig load() {
+            if (!CONFIG_FILE.exists()) {
+                try {
+                    CONFIG_FILE.getParentFile().mkdirs();
+                    CONFIG_FILE.createNewFile();
+                    LogAppender.append("Created config file!", LOGGER);
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Could not create " + CONFIG_FILE.getName() + "!", e);
+                }
+            }
+            FileConfiguration global = YamlConfiguration.loadConfiguration(CONFIG_FILE);
+            global.options().header("Updater by ArsenArsen\nGlobal config\nSets should updates be downloaded globally\n"
+                    + "throttle limits the bytes per second all updates together may download and write, 0 for no limit\n"
+                    + "executor.threads limits how many downloads, backups and checks run at once, "
+                    + "executor.virtual-threads runs them on virtual threads where the JVM has them\n"
+                    + "backups.keep and backups.max-age-days can be overridden per plugin under backups.plugins.<name>");
+            boolean defaults = false;
+            if (!global.isSet("update")) {
+                global.set("update", true);
+                defaults = true;
+            }
+            if (!global.isSet("throttle.network-bytes-per-second")) {
+                global.set("throttle.network-bytes-per-second", 0);
+                global.set("throttle.disk-bytes-per-second", 0);
+                defaults = true;
+            }
+            if (!global.isSet("executor.threads")) {
+                global.set("executor.threads", 2);
+                global.set("executor.virtual-threads", false);
+                defaults = true;
+            }
+            if (!global.isSet("backups.keep")) {
+                global.set("backups.keep", 5);
+                global.set("backups.max-age-days", 30);
+                defaults = true;
+            }
+            if (defaults) {
+                try {
+                    global.save(CONFIG_FILE);
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Could not save default config file!", e);
+                }
+            }
+            return new GlobalConfig(global);
+        }
+
+        /**
+         * Hands the throttle and executor settings to the classes that use them
+         */
+        private void apply() {
+            Throttle.NETWORK.setRate(networkRate);
+            Throttle.DISK.setRate(diskRate);
+            Workers.configure(threads, virtualThreads);
+        }
+
+        private static void watch() {
+            final WatchService watcher;
+            try {
+                watcher = FileSystems.getDefault().newWatchService();
+                WORKING_DIR.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not watch " + CONFIG_FILE.getPath() + ", changes apply after a restart", e);
+                return;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        WatchKey key;
+                        try {
+                            key = watcher.take();
+                        } catch (InterruptedException | ClosedWatchServiceException e) {
+                            return;
+                        }
+                        boolean changed = false;
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (CONFIG_FILE.getName().equals(String.valueOf(event.context())))
+                                changed = true;
+                        }
+                        if (changed) {
+                            GlobalConfig config = load();
+                            current = config;
+                            config.apply();
+                        }
+                        if (!key.reset())
+                            return;
+                    }
+                }
+            }, "Updater config watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * The start of a phase, along with its flight recorder event if one is being recorded
+     */
+    private static final class Span {
+        private final long start = System.nanoTime();
+        private final Object event = Flight.begin();
+    }
+
+    /**
+     * Flight recorder events for the phases, com.arsenarsen.updater.Phase in the Updater category<br>
+     * <br>
+     * The event type is made through jdk.jfr.EventFactory by reflection, so the updater still loads on JVMs
+     * without JFR. The event begins when the phase does, so it lines up with the GC and safepoint events of the
+     * same recording, the thread is recorded by JFR itself. When no recording has the event enabled nothing is
+     * created.
+     */
+    private static final class Flight {
+        private static final String[] FIELDS = {"phase", "plugin", "projectId", "bytes", "primaryThread"};
+        private static final Class<?>[] TYPES = {String.class, String.class, String.class, long.class, boolean.class};
+        private static final String[] LABELS = {"Phase", "Plugin", "Project ID", "Bytes", "Primary Thread"};
+
+        private static Object type;
+        private static Object factory;
+        private static Method isEnabled;
+        private static Method newEvent;
+        private static Method begin;
+        private static Method end;
+        private static Method shouldCommit;
+        private static Method set;
+        private static Method commit;
+
+        static {
+            try {
+                Class<? extends Annotation> name = annotation("jdk.jfr.Name");
+                Class<? extends Annotation> label = annotation("jdk.jfr.Label");
+                Class<?> element = Class.forName("jdk.jfr.AnnotationElement");
+                Constructor<?> annotation = element.getConstructor(Class.class, Object.class);
+                Constructor<?> descriptor = Class.forName("jdk.jfr.ValueDescriptor")
+                        .getConstructor(Class.class, String.class, List.class);
+                List<Object> annotations = new ArrayList<>();
+                annotations.add(annotation.newInstance(name, Metrics.domain() + ".Phase"));
+                annotations.add(annotation.newInstance(label, "Updater Phase"));
+                annotations.add(annotation.newInstance(annotation("jdk.jfr.Category"), new String[]{"Updater"}));
+                annotations.add(annotation.newInstance(annotation("jdk.jfr.Description"),
+                        "A step of checking for or applying a plugin update"));
+                List<Object> fields = new ArrayList<>();
+                for (int i = 0; i < FIELDS.length; i++) {
+                    List<Object> fieldAnnotations = new ArrayList<>();
+                    fieldAnnotations.add(annotation.newInstance(label, LABELS[i]));
+                    if (FIELDS[i].equals("bytes"))
+                        fieldAnnotations.add(annotation.newInstance(annotation("jdk.jfr.DataAmount"), "BYTES"));
+                    fields.add(descriptor.newInstance(TYPES[i], FIELDS[i], fieldAnnotations));
+                }
+                Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+                Object created = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+                Class<?> event = Class.forName("jdk.jfr.Event");
+                type = eventFactory.getMethod("getEventType").invoke(created);
+                isEnabled = type.getClass().getMethod("isEnabled");
+                newEvent = eventFactory.getMethod("newEvent");
+                begin = event.getMethod("begin");
+                end = event.getMethod("end");
+                shouldCommit = event.getMethod("shouldCommit");
+                set = event.getMethod("set", int.class, Object.class);
+                commit = event.getMethod("commit");
+                factory = created;
+            } catch (ReflectiveOperationException | RuntimeException | LinkageError ignored) {
+                // No JFR on this JVM, or it is not allowed to register events
+                factory = null;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Class<? extends Annotation> annotation(String name) throws ClassNotFoundException {
+            return (Class<? extends Annotation>) Class.forName(name);
+        }
+
+        /**
+         * @return The begun event, or null if no recording wants it
+         */
+        static Object begin() {
+            if (factory == null)
+                return null;
+            try {
+                if (!(Boolean) isEnabled.invoke(type))
+                    return null;
+                Object event = newEvent.invoke(factory);
+                begin.invoke(event);
+                return event;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        static void commit(Object event, Phase phase, String plugin, String projects, long bytes) {
+            if (event == null)
+                return;
+            try {
+                end.invoke(event);
+                if (!(Boolean) shouldCommit.invoke(event))
+                    return;
+                set.invoke(event, 0, phase.name());
+                set.invoke(event, 1, plugin);
+                set.invoke(event, 2, projects);
+                set.invoke(event, 3, bytes);
+                set.invoke(event, 4, Bukkit.getServer() != null && Bukkit.getServer().isPrimaryThread());
+                commit.invoke(event);
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+                // The event is lost, the phase is not
+            }
+        }
+    }
+
+    /**
+     * Counters behind the MBeans, every updater records into its own and into the aggregate
+     */
+    private static final class Metrics implements MetricsMXBean {
+        private static final long[] BUCKETS = {10, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+        private static final Metrics AGGREGATE = new Metrics();
+        private static final Map<ObjectName, Metrics> registered = new HashMap<>();
+        private static boolean aggregateRegistered = false;
+
+        private final AtomicLong checks = new AtomicLong();
+        private final AtomicLong checkNanos = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length + 1);
+        private final AtomicLong downloaded = new AtomicLong();
+        private final AtomicLong downloadNanos = new AtomicLong();
+        private final AtomicLong hashNanos = new AtomicLong();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final Map<String, AtomicLong> failures = new ConcurrentHashMap<>();
+        private volatile String lastAvailability;
+        private volatile String lastResult;
+
+        void checked(long nanos, UpdateAvailability availability) {
+            checks.incrementAndGet();
+            checkNanos.addAndGet(nanos);
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis > BUCKETS[bucket])
+                bucket++;
+            histogram.incrementAndGet(bucket);
+            lastAvailability = availability.name();
+            if (availability != UpdateAvailability.UPDATE_AVAILABLE && availability != UpdateAvailability.NO_UPDATE)
+                fail(availability.name());
+            if (this != AGGREGATE)
+                AGGREGATE.checked(nanos, availability);
+        }
+
+        void updated(UpdateResult result) {
+            lastResult = result.name();
+            if (result != UpdateResult.UPDATE_SUCCEEDED && result != UpdateResult.NOT_UPDATED
+                    && result != UpdateResult.DISABLED)
+                fail(result.name());
+            if (this != AGGREGATE)
+                AGGREGATE.updated(result);
+        }
+
+        void timed(Phase phase, Timing timing) {
+            if (phase == Phase.DOWNLOAD) {
+                downloaded.addAndGet(timing.getBytes());
+                downloadNanos.addAndGet(timing.getNanos());
+            } else if (phase == Phase.HASH) {
+                hashNanos.addAndGet(timing.getNanos());
+            }
+            if (this != AGGREGATE)
+                AGGREGATE.timed(phase, timing);
+        }
+
+        void cache(boolean hit) {
+            (hit ? hits : misses).incrementAndGet();
+            if (this != AGGREGATE)
+                AGGREGATE.cache(hit);
+        }
+
+        private void fail(String cause) {
+            AtomicLong count = failures.get(cause);
+            if (count == null) {
+                failures.putIfAbsent(cause, new AtomicLong());
+                count = failures.get(cause);
+            }
+            count.incrementAndGet();
+        }
+
+        @Override
+        public long getChecks() {
+            return checks.get();
+        }
+
+        @Override
+        public Map<String, Long> getCheckLatencyHistogram() {
+            Map<String, Long> buckets = new LinkedHashMap<>();
+            for (int i = 0; i < BUCKETS.length; i++)
+                buckets.put("<=" + BUCKETS[i] + "ms", histogram.get(i));
+            buckets.put(">" + BUCKETS[BUCKETS.length - 1] + "ms", histogram.get(BUCKETS.length));
+            return buckets;
+        }
+
+        @Override
+        public double getMeanCheckMillis() {
+            long count = checks.get();
+            return count == 0 ? 0 : checkNanos.get() / 1e6 / count;
+        }
+
+        @Override
+        public String getLastAvailability() {
+            return lastAvailability;
+        }
+
+        @Override
+        public String getLastResult() {
+            return lastResult;
+        }
+
+        @Override
+        public long getBytesDownloaded() {
+            return downloaded.get();
+        }
+
+        @Override
+        public long getDownloadBytesPerSecond() {
+            long nanos = downloadNanos.get();
+            return nanos == 0 ? 0 : (long) (downloaded.get() * 1e9 / nanos);
+        }
+
+        @Override
+        public double getHashMillis() {
+            return hashNanos.get() / 1e6;
+        }
+
+        @Override
+        public Map<String, Long> getFailures() {
+            Map<String, Long> counts = new TreeMap<>();
+            for (Map.Entry<String, AtomicLong> failure : failures.entrySet())
+                counts.put(failure.getKey(), failure.getValue().get());
+            return counts;
+        }
+
+        @Override
+        public long getCacheHits() {
+            return hits.get();
+        }
+
+        @Override
+        public long getCacheMisses() {
+            return misses.get();
+        }
+
+        @Override
+        public double getCacheHitRate() {
+            long hit = hits.get();
+            long total = hit + misses.get();
+            return total == 0 ? 0 : (double) hit / total;
+        }
+
+        /**
+         * Registers the MBean of an updater, replacing the one of an earlier updater for the same plugin
+         */
+        static synchronized void register(Updater updater) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                if (!aggregateRegistered) {
+                    ObjectName aggregate = new ObjectName(domain() + ":type=Aggregate");
+                    if (!server.isRegistered(aggregate))
+                        server.registerMBean(new StandardMBean(AGGREGATE, MetricsMXBean.class, true), aggregate);
+                    aggregateRegistered = true;
+                }
+                ObjectName name = new ObjectName(domain() + ":type=Updater,name=" + ObjectName.quote(updater.p.getName()));
+                if (server.isRegistered(name))
+                    server.unregisterMBean(name);
+                server.registerMBean(new StandardMBean(updater.metrics, MetricsMXBean.class, true), name);
+                registered.put(name, updater.metrics);
+                updater.metricsName = name;
+            } catch (JMException | SecurityException e) {
+                updater.log("Could not register the metrics of " + updater.p.getName(), e);
+            }
+        }
+
+        static synchronized void unregister(Updater updater) {
+            ObjectName name = updater.metricsName;
+            updater.metricsName = null;
+            if (name == null || registered.get(name) != updater.metrics)
+                return;
+            registered.remove(name);
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException | SecurityException ignored) {
+                // Someone else unregistered it already
+            }
+        }
+
+        private static String domain() {
+            Package owner = Updater.class.getPackage();
+            return owner == null ? "updater" : owner.getName();
+        }
+    }
+
+    /**
+     * Extracts zips, one job per entry on the workers' second pool<br>
+     * <br>
+     * Entries that already exist in the plugins folder go to the update folder, new ones straight into the
+     * plugins folder. Whether they exist is answered from one listing per directory instead of a stat per entry.
+     * Entries whose size and CRC32 match the file already in the plugins folder are not written again.
+     * Entries whose path leads outside either folder are refused.
+     */
+    private static final class Extractor {
+        private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+            @Override
+            protected byte[] initialValue() {
+                return new byte[0x40000];
+            }
+        };
+
+        static Extracted extract(final ZipFile zip, File plugins, File update) throws IOException {
+            final Placement placement = new Placement(plugins, update);
+            final AtomicLong skipped = new AtomicLong();
+            List<Callable<Long>> jobs = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory())
+                    continue;
+                final Path live = placement.live(entry.getName());
+                final Path target = placement.target(entry.getName());
+                jobs.add(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        if (live != null && unchanged(live, entry.getSize(), entry.getCrc())) {
+                            skipped.addAndGet(entry.getSize());
+                            return 0L;
+                        }
+                        placement.prepare(target);
+                        return copy(zip.getInputStream(entry), new FileOutputStream(target.toFile()), false, buffers.get());
+                    }
+                });
+            }
+            if (jobs.size() < 2) {
+                long bytes = 0;
+                for (Callable<Long> job : jobs)
+                    bytes += run(job);
+                return new Extracted(bytes, skipped.get());
+            }
+            List<Future<Long>> futures = new ArrayList<>();
+            for (Callable<Long> job : jobs)
+                futures.add(Workers.offload(job));
+            long bytes = 0;
+            try {
+                for (Future<Long> future : futures)
+                    bytes += future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while extracting " + zip.getName());
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } finally {
+                for (Future<Long> future : futures)
+                    future.cancel(true);
+            }
+            return new Extracted(bytes, skipped.get());
+        }
+
+        /**
+         * Moves the files of an extracted staging folder to where {@link #extract} would have put them
+         *
+         * @param crcs The CRC32 of every staged file, as read from the zip
+         */
+        static Extracted promote(File staging, final Map<Path, Long> crcs, File plugins, File update) throws IOException {
+            final Path root = staging.toPath().toAbsolutePath().normalize();
+            final Placement placement = new Placement(plugins, update);
+            final long[] bytes = {0, 0};
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+                    Path live = placement.live(name);
+                    Long crc = crcs.get(file);
+                    if (live != null && crc != null && unchanged(live, attrs.size(), crc)) {
+                        bytes[1] += attrs.size();
+                        return FileVisitResult.CONTINUE;
+                    }
+                    Path target = placement.prepare(placement.target(name));
+                    try {
+                        Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    bytes[0] += attrs.size();
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return new Extracted(bytes[0], bytes[1]);
+        }
+
+        /**
+         * Checks the size first so only files that could be the same are read for their CRC32
+         */
+        private static boolean unchanged(Path file, long size, long crc) throws IOException {
+            if (size < 0 || crc < 0 || Files.size(file) != size)
+                return false;
+            CRC32 actual = new CRC32();
+            byte[] buf = buffers.get();
+            try (InputStream in = Files.newInputStream(file)) {
+                int r;
+                while ((r = in.read(buf)) != -1)
+                    actual.update(buf, 0, r);
+            }
+            return actual.getValue() == crc;
+        }
+
+        private static long run(Callable<Long> job) throws IOException {
+            try {
+                return job.call();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+
+        private static Path resolve(Path root, String name) throws IOException {
+            Path resolved = root.resolve(name).normalize();
+            if (!resolved.startsWith(root) || resolved.equals(root))
+                throw new IOException("Zip entry " + name + " points outside of " + root);
+            return resolved;
+        }
+
+        static final class Extracted {
+            final long written;
+            final long skipped;
+
+            Extracted(long written, long skipped) {
+                this.written = written;
+                this.skipped = skipped;
+            }
+        }
+
+        /**
+         * Picks where entries go, the update folder if the file is already in the plugins folder and the plugins
+         * folder otherwise, listing every folder and creating every parent only once
+         */
+        private static final class Placement {
+            private final Path pluginsRoot;
+            private final Path updateRoot;
+            private final Map<Path, Set<String>> listings = new HashMap<>();
+            private final Set<Path> directories = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+            Placement(File plugins, File update) {
+                pluginsRoot = plugins.toPath().toAbsolutePath().normalize();
+                updateRoot = update.toPath().toAbsolutePath().normalize();
+            }
+
+            /**
+             * @return The file with this name in the plugins folder, or null if there is none
+             */
+            Path live(String name) throws IOException {
+                Path inPlugins = resolve(pluginsRoot, name);
+                return exists(inPlugins) ? inPlugins : null;
+            }
+
+            Path target(String name) throws IOException {
+                Path inPlugins = resolve(pluginsRoot, name);
+                return exists(inPlugins) ? resolve(updateRoot, name) : inPlugins;
+            }
+
+            /**
+             * Creates the parents of a target, marking them done only once they exist, since other extraction
+             * threads skip the marked ones and write into them right away
+             */
+            Path prepare(Path target) throws IOException {
+                Path parent = target.getParent();
+                if (!directories.contains(parent)) {
+                    Files.createDirectories(parent);
+                    directories.add(parent);
+                }
+                return target;
+            }
+
+            private boolean exists(Path file) {
+                Path directory = file.getParent();
+                Set<String> names = listings.get(directory);
+                if (names == null) {
+                    String[] list = directory.toFile().list();
+                    names = list == null ? Collections.<String>emptySet() : new HashSet<>(Arrays.asList(list));
+                    listings.put(directory, names);
+                }
+                return names.contains(file.getFileName().toString());
+            }
+        }
     }
 }
@@ -2,12 +2,19 @@ package org.bukkit.scheduler;
 
 import org.bukkit.plugin.Plugin;
 
+import java.util.Queue;
+
 /**
  * Fake bukkit scheduler
  * <br>
  * Created by Arsen on 26.8.2016.
  */
 public abstract class BukkitRunnable implements Runnable {
+    /**
+     * Tasks for the next tick go here instead of running right away while this is set
+     */
+    public static volatile Queue<Runnable> deferred;
+
     public synchronized BukkitTask runTaskAsynchronously(Plugin plugin) throws IllegalArgumentException, IllegalStateException {
         new Thread(this).start();
         System.out.println("RTA");
@@ -16,7 +23,11 @@ public abstract class BukkitRunnable implements Runnable {
 
     public synchronized BukkitTask runTask(Plugin plugin) throws IllegalArgumentException, IllegalStateException {
         System.out.println("RT");
-        run();
+        Queue<Runnable> next = deferred;
+        if (next != null)
+            next.add(this);
+        else
+            run();
         return null;
     }
 }
@@ -0,0 +1,145 @@
+package tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Backups in the blob store, no network needed
+ */
+public class BackupTest {
+    private static int nextPlugin = (int) (System.currentTimeMillis() % 100000);
+
+    static {
+        WorkingDir.useTemporary();
+    }
+
+    @Test
+    public void testSameContentDeduplicated() throws Exception {
+        String plugin = plugin();
+        File jar = jar(1);
+        File first = backup(jar, plugin, "1.0.0");
+        Thread.sleep(5);
+        Assert.assertEquals(first, backup(jar, plugin, "1.0.1"));
+    }
+
+    @Test
+    public void testBlobsShared() throws Exception {
+        String plugin = plugin();
+        File a = jar(2);
+        File b = jar(3);
+        Set<String> before = blobs();
+        File firstA = backup(a, plugin, "1.0.0");
+        String blobA = added(before);
+        Thread.sleep(5);
+        before = blobs();
+        File backupB = backup(b, plugin, "1.0.1");
+        String blobB = added(before);
+        Object key = key(new File(blobDir(), blobA));
+        Thread.sleep(5);
+        before = blobs();
+        File secondA = backup(a, plugin, "1.0.2");
+
+        // Going back to A makes a new backup on the old blob
+        Assert.assertFalse(firstA.equals(secondA));
+        Assert.assertEquals(before, blobs());
+        Assert.assertEquals(key, key(new File(blobDir(), blobA)));
+        Assert.assertArrayEquals(Files.readAllBytes(a.toPath()), Files.readAllBytes(secondA.toPath()));
+
+        prune(plugin, 1, 0);
+        Assert.assertFalse(firstA.exists());
+        Assert.assertFalse(backupB.exists());
+        Assert.assertTrue(secondA.isFile());
+        Assert.assertFalse(new File(blobDir(), blobB).exists());
+        Assert.assertTrue(new File(blobDir(), blobA).isFile());
+    }
+
+    @Test
+    public void testPruneByAge() throws Exception {
+        String plugin = plugin();
+        File older = backup(jar(4), plugin, "1.0.0");
+        Thread.sleep(50);
+        File newer = backup(jar(5), plugin, "1.0.1");
+        Thread.sleep(50);
+
+        // Both are too old, the newest one stays anyway
+        prune(plugin, 0, 20);
+        Assert.assertFalse(older.exists());
+        Assert.assertTrue(newer.isFile());
+        prune(plugin, 0, 20);
+        Assert.assertTrue(newer.isFile());
+    }
+
+    private static String plugin() {
+        return "BackupTest" + nextPlugin++;
+    }
+
+    /**
+     * Every seed gets its own size, jars of the same size and age could pass for each other
+     */
+    private static File jar(int seed) throws IOException {
+        byte[] content = new byte[4096 + seed];
+        new Random(System.nanoTime() + seed).nextBytes(content);
+        File jar = Files.createTempFile("backup", ".jar").toFile();
+        Files.write(jar.toPath(), content);
+        return jar;
+    }
+
+    private static Object key(File file) throws IOException {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+    }
+
+    private static Set<String> blobs() throws ReflectiveOperationException {
+        String[] names = blobDir().list();
+        return names == null ? new HashSet<String>() : new HashSet<>(Arrays.asList(names));
+    }
+
+    /**
+     * @return The one blob that is there now but was not before
+     */
+    private static String added(Set<String> before) throws ReflectiveOperationException {
+        Set<String> now = blobs();
+        now.removeAll(before);
+        Assert.assertEquals(1, now.size());
+        return now.iterator().next();
+    }
+
+    private static File blobDir() throws ReflectiveOperationException {
+        Field field = store().getDeclaredField("BLOB_DIR");
+        field.setAccessible(true);
+        return (File) field.get(null);
+    }
+
+    private static File backup(File jar, String plugin, String version) throws Exception {
+        return (File) invoke(store().getDeclaredMethod("backup", File.class, String.class, String.class),
+                jar, plugin, version);
+    }
+
+    private static void prune(String plugin, int keep, long maxAge) throws Exception {
+        invoke(store().getDeclaredMethod("prune", String.class, int.class, long.class), plugin, keep, maxAge);
+    }
+
+    private static Object invoke(Method method, Object... args) throws Exception {
+        method.setAccessible(true);
+        try {
+            return method.invoke(null, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private static Class<?> store() throws ClassNotFoundException {
+        return Class.forName("com.arsenarsen.updater.Updater$BackupStore");
+    }
+}
@@ -0,0 +1,94 @@
+package tests;
+
+import com.arsenarsen.updater.Updater;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Handing update results to the callbacks, no network needed
+ */
+public class CallbackTest {
+    static {
+        WorkingDir.useTemporary();
+    }
+
+    @Test
+    public void testCoalescedDispatch() throws Exception {
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        final List<Updater> updaters = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Updater updater = new Updater(Tester.testPlugin);
+            if (i == 0) {
+                updater.registerCallback(new Updater.UpdateCallback() {
+                    @Override
+                    public void updated(Updater.UpdateResult updateResult, Updater updater) {
+                        throw new IllegalStateException("Failing on purpose");
+                    }
+                });
+            }
+            final int index = i;
+            updater.registerCallback(new Updater.UpdateCallback() {
+                @Override
+                public void updated(Updater.UpdateResult updateResult, Updater updater) {
+                    delivered.add(index + " " + updateResult);
+                }
+            });
+            updaters.add(updater);
+        }
+
+        Queue<Runnable> ticks = new ConcurrentLinkedQueue<>();
+        BukkitRunnable.deferred = ticks;
+        try {
+            final Exception[] failure = new Exception[1];
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (Updater updater : updaters)
+                            dispatch(updater, Updater.UpdateResult.UPDATE_SUCCEEDED);
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            worker.start();
+            worker.join();
+            Assert.assertNull(failure[0]);
+            // Five results off the primary thread, one task for the next tick
+            Assert.assertTrue(delivered.isEmpty());
+            Assert.assertEquals(1, ticks.size());
+        } finally {
+            BukkitRunnable.deferred = null;
+        }
+        ticks.poll().run();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < updaters.size(); i++)
+            expected.add(i + " UPDATE_SUCCEEDED");
+        Assert.assertEquals(expected, delivered);
+
+        // On the primary thread the callbacks run right away
+        delivered.clear();
+        dispatch(updaters.get(1), Updater.UpdateResult.IOERROR);
+        Assert.assertEquals(Collections.singletonList("1 IOERROR"), delivered);
+    }
+
+    private static void dispatch(Updater updater, Updater.UpdateResult result) throws Exception {
+        Method dispatch = Class.forName("com.arsenarsen.updater.Updater$CallbackDispatcher")
+                .getDeclaredMethod("dispatch", Updater.class, Updater.UpdateResult.class);
+        dispatch.setAccessible(true);
+        try {
+            dispatch.invoke(null, updater, result);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Zip extraction into the plugins and update folders, no network needed
+ */
+public class ExtractTest {
+    private static final byte[] SAME = "Unchanged".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CHANGED = "Changed".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ADDED = "Added".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testUnchangedEntriesSkipped() throws Exception {
+        File plugins = plugins();
+        File update = new File(new File(plugins, "update"), "Test.jar");
+        File archive = Files.createTempFile("update", ".zip").toFile();
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive))) {
+            for (Map.Entry<String, byte[]> entry : entries().entrySet()) {
+                zip.putNextEntry(new ZipEntry(entry.getKey()));
+                zip.write(entry.getValue());
+                zip.closeEntry();
+            }
+        }
+        Object extracted;
+        try (ZipFile zip = new ZipFile(archive)) {
+            extracted = invoke(extractor().getDeclaredMethod("extract", ZipFile.class, File.class, File.class),
+                    zip, plugins, update);
+        }
+        check(extracted, plugins, update);
+    }
+
+    @Test
+    public void testUnchangedStagedFilesSkipped() throws Exception {
+        File plugins = plugins();
+        File update = new File(new File(plugins, "update"), "Test.jar");
+        File staging = Files.createTempDirectory("staging").toFile();
+        Map<Path, Long> crcs = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : entries().entrySet()) {
+            Path file = staging.toPath().toAbsolutePath().normalize().resolve(entry.getKey());
+            Files.write(file, entry.getValue());
+            crcs.put(file, crc(entry.getValue()));
+        }
+        check(invoke(extractor().getDeclaredMethod("promote", File.class, Map.class, File.class, File.class),
+                staging, crcs, plugins, update), plugins, update);
+    }
+
+    /**
+     * a.txt is installed as it is in the zip, b.txt is installed but different, c.txt is not installed
+     */
+    private static File plugins() throws Exception {
+        File plugins = Files.createTempDirectory("plugins").toFile();
+        Files.write(new File(plugins, "a.txt").toPath(), SAME);
+        Files.write(new File(plugins, "b.txt").toPath(), "Before".getBytes(StandardCharsets.UTF_8));
+        return plugins;
+    }
+
+    private static Map<String, byte[]> entries() {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("a.txt", SAME);
+        entries.put("b.txt", CHANGED);
+        entries.put("c.txt", ADDED);
+        return entries;
+    }
+
+    private static void check(Object extracted, File plugins, File update) throws Exception {
+        Assert.assertEquals(SAME.length, field(extracted, "skipped"));
+        Assert.assertEquals(CHANGED.length + ADDED.length, field(extracted, "written"));
+        Assert.assertFalse(new File(update, "a.txt").exists());
+        Assert.assertArrayEquals(CHANGED, Files.readAllBytes(new File(update, "b.txt").toPath()));
+        Assert.assertArrayEquals(ADDED, Files.readAllBytes(new File(plugins, "c.txt").toPath()));
+    }
+
+    private static long crc(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    private static long field(Object extracted, String name) throws ReflectiveOperationException {
+        Field field = extracted.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.getLong(extracted);
+    }
+
+    private static Object invoke(Method method, Object... args) throws Exception {
+        method.setAccessible(true);
+        try {
+            return method.invoke(null, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private static Class<?> extractor() throws ClassNotFoundException {
+        return Class.forName("com.arsenarsen.updater.Updater$Extractor");
+    }
+}
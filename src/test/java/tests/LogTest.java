@@ -0,0 +1,157 @@
+package tests;
+
+import com.arsenarsen.updater.Updater;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The updater's own log file, no network needed
+ */
+public class LogTest {
+    private static final Logger LOGGER = Logger.getLogger("LogTest");
+    private static final int ROTATIONS = 5;
+
+    static {
+        WorkingDir.useTemporary();
+    }
+
+    private File log;
+
+    /**
+     * Waits for what other tests logged and starts from an empty log
+     */
+    @Before
+    public void clear() throws Exception {
+        log = (File) field(Updater.class, "LOG_FILE").get(null);
+        drain();
+        synchronized (appender()) {
+            for (File file : files())
+                Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @Test
+    public void testRotatedOnNewDay() throws Exception {
+        append("yesterday");
+        await(log, "yesterday");
+        Assert.assertTrue(log.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)));
+        append("today");
+        await(log, "today");
+        Assert.assertFalse(read(log).contains("yesterday"));
+        Assert.assertTrue(read(rotation(1)).contains("yesterday"));
+    }
+
+    @Test
+    public void testRotatedWhenLarge() throws Exception {
+        log.getParentFile().mkdirs();
+        byte[] padding = new byte[1024 * 1024];
+        Arrays.fill(padding, (byte) 'x');
+        Files.write(log.toPath(), padding);
+        append("small");
+        await(log, "small");
+        Assert.assertEquals(padding.length, rotation(1).length());
+        Assert.assertTrue(log.length() < 1024);
+    }
+
+    @Test
+    public void testOldestRotationDropped() throws Exception {
+        log.getParentFile().mkdirs();
+        for (int i = 1; i <= ROTATIONS; i++)
+            Files.write(rotation(i).toPath(), ("rotation " + i).getBytes(StandardCharsets.UTF_8));
+        Files.write(log.toPath(), "current".getBytes(StandardCharsets.UTF_8));
+        Assert.assertTrue(log.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)));
+        append("next");
+        await(log, "next");
+        Assert.assertEquals("current", read(rotation(1)));
+        for (int i = 2; i <= ROTATIONS; i++)
+            Assert.assertEquals("rotation " + (i - 1), read(rotation(i)));
+        Assert.assertFalse(rotation(ROTATIONS + 1).exists());
+    }
+
+    @Test
+    public void testDroppedLinesCounted() throws Exception {
+        int lines = 10000;
+        // The writer waits for the lock while the queue fills up
+        synchronized (appender()) {
+            for (int i = 0; i < lines; i++)
+                append("line " + i);
+        }
+        drain();
+        append("done");
+        await(log, "done");
+        int written = 0;
+        long dropped = 0;
+        for (File file : files()) {
+            if (!file.isFile())
+                continue;
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                if (line.matches(".*\\] line \\d+"))
+                    written++;
+                else if (line.endsWith(" lines were dropped, the log queue was full"))
+                    dropped += Long.parseLong(line.substring(line.indexOf("] ") + 2, line.indexOf(" lines")));
+            }
+        }
+        Assert.assertTrue(dropped > 0);
+        Assert.assertEquals(lines, written + dropped);
+    }
+
+    private static void drain() throws Exception {
+        BlockingQueue<?> queue = (BlockingQueue<?>) field(appender(), "queue").get(null);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!queue.isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+    }
+
+    private List<File> files() {
+        List<File> files = new ArrayList<>();
+        files.add(log);
+        for (int i = 1; i <= ROTATIONS + 1; i++)
+            files.add(rotation(i));
+        return files;
+    }
+
+    private File rotation(int i) {
+        return new File(log.getPath() + "." + i);
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static void await(File file, String text) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!(file.isFile() && read(file).contains(text)) && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Assert.assertTrue(text + " was not logged", file.isFile() && read(file).contains(text));
+    }
+
+    private static void append(String message) throws Exception {
+        Method append = appender().getDeclaredMethod("append", String.class, Logger.class);
+        append.setAccessible(true);
+        append.invoke(null, message, LOGGER);
+    }
+
+    private static Field field(Class<?> owner, String name) throws NoSuchFieldException {
+        Field field = owner.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+
+    private static Class<?> appender() throws ClassNotFoundException {
+        return Class.forName("com.arsenarsen.updater.Updater$LogAppender");
+    }
+}
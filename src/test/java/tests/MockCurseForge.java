@@ -0,0 +1,338 @@
+package tests;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the CurseForge API on the JDK's HTTP server
+ * <br>
+ * Serves /servermods/files and the release files, and can misbehave the ways the real one does:
+ * redirects, 429 and 5xx answers, slow and truncated bodies. Point the updater at it with
+ * the com.arsenarsen.updater.host system property. Release lists carry an ETag and a Last-Modified, and
+ * conditional requests for unchanged projects are answered with a 304.
+ */
+public class MockCurseForge implements AutoCloseable {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(16);
+    private final Map<Integer, List<Release>> projects = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> modified = new ConcurrentHashMap<>();
+    private final Map<String, Release> files = new ConcurrentHashMap<>();
+    private final Queue<Integer> failures = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * Redirects every API request goes through before it is answered
+     */
+    volatile int redirects = 0;
+    /**
+     * Whether files are served in ranges
+     */
+    volatile boolean ranges = true;
+    /**
+     * Rate of file bodies, 0 for as fast as possible
+     */
+    volatile long bytesPerSecond = 0;
+    /**
+     * File bodies stop after this many bytes, -1 for whole bodies
+     */
+    volatile long truncateAfter = -1;
+    /**
+     * Seconds a 429 or 503 asks to wait before retrying
+     */
+    volatile int retryAfter = 0;
+
+    public MockCurseForge() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/servermods/files", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    api(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/redirect/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    requests.incrementAndGet();
+                    String path = exchange.getRequestURI().getRawPath().substring("/redirect/".length());
+                    int hops = Integer.parseInt(path.substring(0, path.indexOf('/')));
+                    String rest = path.substring(path.indexOf('/'));
+                    String query = exchange.getRequestURI().getRawQuery();
+                    String next = hops > 1 ? "/redirect/" + (hops - 1) + rest + "?" + query : rest + "?" + query + "&redirected";
+                    exchange.getResponseHeaders().set("Location", next);
+                    exchange.sendResponseHeaders(302, -1);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/files/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    file(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return Where the server listens, as http://host:port
+     */
+    public String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Adds or replaces a project whose releases are named "Test v1.0.0" up to "Test v1.0.&lt;count - 1&gt;", the newest last
+     *
+     * @param size Size of the newest release's file, older ones have 1024 bytes
+     */
+    public void project(int id, int count, int size) {
+        byte[] newest = new byte[size];
+        new Random(id * 31L + count - 1).nextBytes(newest);
+        project(id, count, newest, "Test.jar");
+    }
+
+    /**
+     * Adds or replaces a project whose newest release is the given file, such as a zip
+     */
+    public void project(int id, int count, byte[] newest, String fileName) {
+        List<Release> releases = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String name = "Test v1.0." + i;
+            String file = id + "/" + i + "/" + fileName;
+            byte[] content = newest;
+            if (i != count - 1) {
+                content = new byte[1024];
+                new Random(id * 31L + i).nextBytes(content);
+            }
+            Release release = new Release(id, name, fileName, url() + "/files/" + file, content);
+            releases.add(release);
+            files.put(file, release);
+        }
+        projects.put(id, releases);
+        // Last-Modified has whole seconds, a replaced project has to be newer than what clients saw
+        Long previous = modified.get(id);
+        long now = System.currentTimeMillis() / 1000 * 1000;
+        modified.put(id, previous == null ? now : Math.max(now, previous + 1000));
+    }
+
+    /**
+     * The next API requests are answered with these statuses, in order
+     */
+    public void failWith(Integer... statuses) {
+        failures.addAll(Arrays.asList(statuses));
+    }
+
+    public byte[] content(int id) {
+        List<Release> releases = projects.get(id);
+        return releases.get(releases.size() - 1).content;
+    }
+
+    public int requests() {
+        return requests.get();
+    }
+
+    public int rangeRequests() {
+        return rangeRequests.get();
+    }
+
+    public int notModified() {
+        return notModified.get();
+    }
+
+    public long bytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void api(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (redirects > 0 && !query.endsWith("&redirected")) {
+            exchange.getResponseHeaders().set("Location", "/redirect/" + redirects + exchange.getRequestURI());
+            exchange.sendResponseHeaders(302, -1);
+            return;
+        }
+        Integer failure = failures.poll();
+        if (failure != null) {
+            if (failure == 429 || failure == 503)
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+            exchange.sendResponseHeaders(failure, -1);
+            return;
+        }
+        String ids = query.replace("&redirected", "");
+        StringBuilder json = new StringBuilder("[");
+        long lastModified = 0;
+        for (String id : ids.substring(ids.indexOf('=') + 1).split(",")) {
+            List<Release> releases = projects.get(Integer.parseInt(id));
+            if (releases == null)
+                continue;
+            lastModified = Math.max(lastModified, modified.get(Integer.parseInt(id)));
+            for (Release release : releases) {
+                if (json.length() > 1)
+                    json.append(',');
+                release.json(json);
+            }
+        }
+        byte[] body = json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+        String etag = '"' + Release.md5(body) + '"';
+        String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                ZonedDateTime.ofInstant(Instant.ofEpochMilli(lastModified), ZoneOffset.UTC));
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Last-Modified", date);
+        if (notModified(exchange, etag, lastModified)) {
+            notModified.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        bytesSent.addAndGet(body.length);
+    }
+
+    /**
+     * If-None-Match wins over If-Modified-Since when a request has both
+     */
+    private static boolean notModified(HttpExchange exchange, String etag, long lastModified) {
+        String match = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (match != null)
+            return match.equals(etag);
+        String since = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        if (since == null)
+            return false;
+        try {
+            return lastModified <= ZonedDateTime.parse(since, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    private void file(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        Release release = files.get(exchange.getRequestURI().getRawPath().substring("/files/".length()));
+        if (release == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        byte[] content = release.content;
+        if (ranges)
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(content.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        int start = 0;
+        int end = content.length - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (ranges && range != null && range.startsWith("bytes=")) {
+            rangeRequests.incrementAndGet();
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            start = Integer.parseInt(bounds[0]);
+            if (bounds.length > 1 && !bounds[1].isEmpty())
+                end = Math.min(end, Integer.parseInt(bounds[1]));
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+            exchange.sendResponseHeaders(206, end - start + 1);
+        } else {
+            exchange.sendResponseHeaders(200, content.length);
+        }
+        OutputStream out = exchange.getResponseBody();
+        long limit = truncateAfter;
+        int chunk = bytesPerSecond > 0 ? (int) Math.max(1, Math.min(8192, bytesPerSecond / 10)) : 65536;
+        for (int position = start; position <= end; position += chunk) {
+            int length = Math.min(chunk, end - position + 1);
+            if (limit >= 0 && position - start + length > limit) {
+                out.write(content, position, (int) Math.max(0, limit - (position - start)));
+                out.flush();
+                bytesSent.addAndGet(Math.max(0, limit - (position - start)));
+                throw new IOException("Truncated on purpose");
+            }
+            out.write(content, position, length);
+            bytesSent.addAndGet(length);
+            if (bytesPerSecond > 0) {
+                out.flush();
+                try {
+                    Thread.sleep(length * 1000L / bytesPerSecond);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class Release {
+        private final int projectId;
+        private final String name;
+        private final String fileName;
+        private final String downloadUrl;
+        private final byte[] content;
+        private final String md5;
+
+        Release(int projectId, String name, String fileName, String downloadUrl, byte[] content) {
+            this.projectId = projectId;
+            this.name = name;
+            this.fileName = fileName;
+            this.downloadUrl = downloadUrl;
+            this.content = content;
+            this.md5 = md5(content);
+        }
+
+        void json(StringBuilder json) {
+            json.append("{\"id\":").append(projectId).append(",\"name\":\"").append(name)
+                    .append("\",\"fileName\":\"").append(fileName).append("\",\"downloadUrl\":\"").append(downloadUrl)
+                    .append("\",\"gameVersion\":\"1.10\",\"md5\":\"").append(md5)
+                    .append("\",\"projectId\":").append(projectId).append(",\"releaseType\":\"release\"}");
+        }
+
+        static String md5(byte[] content) {
+            try {
+                StringBuilder hex = new StringBuilder();
+                for (byte b : MessageDigest.getInstance("MD5").digest(content))
+                    hex.append(String.format("%02x", b & 0xFF));
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
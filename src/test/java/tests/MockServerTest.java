@@ -0,0 +1,420 @@
+package tests;
+
+import com.arsenarsen.updater.Updater;
+import org.junit.*;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Checks and updates against {@link MockCurseForge}, no network needed
+ */
+public class MockServerTest {
+    private static final int UPDATERS = 300;
+    private static MockCurseForge server;
+    private static int nextId = 900000 + (int) (System.currentTimeMillis() % 100000) * 10;
+
+    static {
+        WorkingDir.useTemporary();
+    }
+
+    @BeforeClass
+    public static void start() throws IOException {
+        server = new MockCurseForge();
+        System.setProperty("com.arsenarsen.updater.host", server.url());
+    }
+
+    @AfterClass
+    public static void stop() {
+        System.clearProperty("com.arsenarsen.updater.host");
+        server.close();
+    }
+
+    @Before
+    public void reset() {
+        Tester.version.setLength(0);
+        Tester.version.append("0.0.1");
+        server.redirects = 0;
+        server.ranges = true;
+        server.bytesPerSecond = 0;
+        server.truncateAfter = -1;
+        server.retryAfter = 0;
+    }
+
+    @Test
+    public void testCheck() {
+        Updater updater = updater(project(5, 1024));
+        Assert.assertEquals(Updater.UpdateAvailability.UPDATE_AVAILABLE, updater.checkForUpdates(true));
+        Assert.assertTrue(updater.getLatest().endsWith("1.0.4"));
+    }
+
+    @Test
+    public void testRedirects() {
+        server.redirects = 3;
+        Updater updater = updater(project(2, 1024));
+        Assert.assertEquals(Updater.UpdateAvailability.UPDATE_AVAILABLE, updater.checkForUpdates(true));
+    }
+
+    @Test
+    public void testRetriesRateLimits() throws Exception {
+        Updater updater = updater(project(2, 1024));
+        server.failWith(429, 503);
+        Assert.assertEquals(Updater.UpdateAvailability.UPDATE_AVAILABLE,
+                updater.checkForUpdatesAsync(true).get(60, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRateLimitsNotWaitedOut() throws Exception {
+        Updater updater = updater(project(2, 1024));
+        // The primary thread gives up at once
+        server.failWith(429);
+        long start = System.nanoTime();
+        Assert.assertEquals(Updater.UpdateAvailability.SM_UNREACHABLE, updater.checkForUpdates(true));
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        // Waits past the limit are not taken anywhere
+        server.retryAfter = 31;
+        server.failWith(429);
+        start = System.nanoTime();
+        Assert.assertEquals(Updater.UpdateAvailability.SM_UNREACHABLE,
+                updater.checkForUpdatesAsync(true).get(60, TimeUnit.SECONDS));
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testServerError() {
+        Updater updater = updater(project(2, 1024));
+        server.failWith(500);
+        Assert.assertEquals(Updater.UpdateAvailability.SM_UNREACHABLE, updater.checkForUpdates(true));
+    }
+
+    @Test
+    public void testLargeReleaseList() {
+        Updater updater = updater(project(5000, 1024));
+        Assert.assertEquals(Updater.UpdateAvailability.UPDATE_AVAILABLE, updater.checkForUpdates(true));
+        Assert.assertTrue(updater.getLatest().endsWith("1.0.4999"));
+    }
+
+    @Test
+    public void testRangedDownload() throws Exception {
+        int id = project(2, 3 * 1024 * 1024);
+        int ranges = server.rangeRequests();
+        Updater updater = updater(id);
+        File plugin = pluginFile(updater);
+        Assert.assertEquals(Updater.UpdateResult.UPDATE_SUCCEEDED, updater.updateAsync().get(60, TimeUnit.SECONDS));
+        Assert.assertTrue(server.rangeRequests() - ranges > 1);
+        File installed = new File(new File(plugin.getParentFile(), "update"), plugin.getName());
+        Assert.assertArrayEquals(server.content(id), Files.readAllBytes(installed.toPath()));
+    }
+
+    @Test
+    public void testSlowDownload() throws Exception {
+        server.ranges = false;
+        server.bytesPerSecond = 256 * 1024;
+        int id = project(2, 128 * 1024);
+        Updater updater = updater(id);
+        File plugin = pluginFile(updater);
+        Assert.assertEquals(Updater.UpdateResult.UPDATE_SUCCEEDED, updater.updateAsync().get(60, TimeUnit.SECONDS));
+        File installed = new File(new File(plugin.getParentFile(), "update"), plugin.getName());
+        Assert.assertArrayEquals(server.content(id), Files.readAllBytes(installed.toPath()));
+    }
+
+    @Test
+    public void testOneUpdateAtATime() throws Exception {
+        server.ranges = false;
+        server.bytesPerSecond = 64 * 1024;
+        int id = project(2, 128 * 1024);
+        byte[] expected = server.content(id);
+        Updater updater = updater(id);
+        File plugin = pluginFile(updater);
+        Assert.assertEquals(Updater.UpdateAvailability.UPDATE_AVAILABLE, updater.checkForUpdates(true));
+        CompletableFuture<Updater.UpdateResult> first = updater.updateAsync();
+        Thread.sleep(500);
+        Assert.assertEquals(Updater.UpdateResult.NOT_UPDATED, updater.updateAsync().get(60, TimeUnit.SECONDS));
+        // A newer release found halfway through does not change what is being downloaded
+        server.project(id, 3, 1024);
+        Assert.assertEquals(Updater.UpdateAvailability.UPDATE_AVAILABLE, updater.checkForUpdates(true));
+        Assert.assertEquals(Updater.UpdateResult.UPDATE_SUCCEEDED, first.get(60, TimeUnit.SECONDS));
+        File installed = new File(new File(plugin.getParentFile(), "update"), plugin.getName());
+        Assert.assertArrayEquals(expected, Files.readAllBytes(installed.toPath()));
+    }
+
+    @Test
+    public void testTruncatedDownload() throws Exception {
+        server.ranges = false;
+        server.truncateAfter = 1000;
+        Updater updater = updater(project(2, 64 * 1024));
+        File plugin = pluginFile(updater);
+        Updater.UpdateResult result = updater.updateAsync().get(60, TimeUnit.SECONDS);
+        Assert.assertTrue(result == Updater.UpdateResult.IOERROR || result == Updater.UpdateResult.BAD_HASH);
+        Assert.assertFalse(new File(new File(plugin.getParentFile(), "update"), plugin.getName()).exists());
+    }
+
+    @Test
+    public void testParallelExtraction() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        Random random = new Random(17);
+        for (int i = 0; i < 1280; i++) {
+            StringBuilder path = new StringBuilder();
+            for (int depth = 0; depth <= i % 20; depth++)
+                path.append("folder").append(depth).append('/');
+            byte[] content = new byte[256];
+            random.nextBytes(content);
+            entries.put(path + "file" + i + ".txt", content);
+        }
+        int id = nextId++;
+        server.project(id, 2, zip(entries), "Test.zip");
+        Updater updater = updater(id);
+        File plugin = pluginFile(updater);
+        Assert.assertEquals(Updater.UpdateResult.UPDATE_SUCCEEDED, updater.updateAsync().get(60, TimeUnit.SECONDS));
+        for (Map.Entry<String, byte[]> entry : entries.entrySet())
+            Assert.assertArrayEquals(entry.getValue(), Files.readAllBytes(new File(plugin.getParentFile(), entry.getKey()).toPath()));
+    }
+
+    @Test
+    public void testStreamedExtraction() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++)
+            entries.put("folder" + i % 5 + "/file" + i + ".txt", new byte[4096]);
+        int id = nextId++;
+        server.project(id, 2, zip(entries), "Test.zip");
+        Updater updater = updater(id);
+        updater.setStreamingExtraction(true);
+        File plugin = pluginFile(updater);
+        // The zip is a few KB on the wire and 400KB inflated, only the former counts against the network
+        Object network = throttle("NETWORK");
+        Method rate = network.getClass().getDeclaredMethod("setRate", long.class);
+        rate.setAccessible(true);
+        rate.invoke(network, 64 * 1024L);
+        try {
+            Assert.assertEquals(Updater.UpdateResult.UPDATE_SUCCEEDED, updater.updateAsync().get(60, TimeUnit.SECONDS));
+        } finally {
+            rate.invoke(network, 0L);
+        }
+        Assert.assertTrue(updater.getTimings().get(Updater.Phase.DOWNLOAD).getNanos() < TimeUnit.SECONDS.toNanos(2));
+        Assert.assertEquals(server.content(id).length, updater.getTimings().get(Updater.Phase.DOWNLOAD).getBytes());
+        for (Map.Entry<String, byte[]> entry : entries.entrySet())
+            Assert.assertArrayEquals(entry.getValue(), Files.readAllBytes(new File(plugin.getParentFile(), entry.getKey()).toPath()));
+    }
+
+    @Test
+    public void testZipSlipRejected() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("inside.txt", new byte[]{1});
+        entries.put("../outside-" + nextId + ".txt", new byte[]{2});
+        int id = nextId++;
+        server.project(id, 2, zip(entries), "Test.zip");
+        Updater updater = updater(id);
+        File plugin = pluginFile(updater);
+        Assert.assertEquals(Updater.UpdateResult.IOERROR, updater.updateAsync().get(60, TimeUnit.SECONDS));
+        Assert.assertFalse(new File(plugin.getParentFile().getParentFile(), "outside-" + id + ".txt").exists());
+        Assert.assertFalse(new File(plugin.getParentFile(), "inside.txt").exists());
+    }
+
+    @Test
+    public void testBatchedChecks() throws Exception {
+        List<Updater> updaters = new ArrayList<>();
+        for (int i = 0; i < 40; i++)
+            updaters.add(updater(project(3, 1024)));
+        int requests = server.requests();
+        List<CompletableFuture<Updater.UpdateAvailability>> checks = new ArrayList<>();
+        for (Updater updater : updaters)
+            checks.add(updater.checkForUpdatesAsync());
+        for (CompletableFuture<Updater.UpdateAvailability> check : checks)
+            Assert.assertEquals(Updater.UpdateAvailability.UPDATE_AVAILABLE, check.get(60, TimeUnit.SECONDS));
+        Assert.assertEquals(1, server.requests() - requests);
+    }
+
+    @Test
+    public void testNoRequestsWithoutChecks() throws Exception {
+        int requests = server.requests();
+        updater(project(2, 1024));
+        new Updater(Tester.testPlugin, project(2, 1024), false);
+        // Longer than a batch window
+        Thread.sleep(1500);
+        Assert.assertEquals(requests, server.requests());
+    }
+
+    @Test
+    public void testConditionalRequests() {
+        int id = project(2, 1024);
+        Updater updater = updater(id);
+        Assert.assertEquals(Updater.UpdateAvailability.UPDATE_AVAILABLE, updater.checkForUpdates(true));
+        int notModified = server.notModified();
+        Assert.assertEquals(Updater.UpdateAvailability.UPDATE_AVAILABLE, updater.checkForUpdates(true));
+        Assert.assertEquals(notModified + 1, server.notModified());
+        server.project(id, 4, 1024);
+        Assert.assertEquals(Updater.UpdateAvailability.UPDATE_AVAILABLE, updater.checkForUpdates(true));
+        Assert.assertEquals(notModified + 1, server.notModified());
+        Assert.assertTrue(updater.getLatest().endsWith("1.0.3"));
+    }
+
+    @Test
+    public void testCacheSplitByProject() throws Exception {
+        updater(project(2, 1024));
+        int id = project(3, 1024);
+        Updater first = updater(id);
+        Assert.assertEquals(Updater.UpdateAvailability.UPDATE_AVAILABLE, first.checkForUpdates(true));
+        // As after a restart, only the cache on disk is left, and the API is down
+        Field results = Class.forName("com.arsenarsen.updater.Updater$CheckBatcher").getDeclaredField("results");
+        results.setAccessible(true);
+        ((Map<?, ?>) results.get(null)).clear();
+        int requests = server.requests();
+        server.failWith(500);
+        Updater restarted = updater(id);
+        Assert.assertEquals(Updater.UpdateAvailability.UPDATE_AVAILABLE, restarted.checkForUpdates());
+        Assert.assertTrue(restarted.getLatest().endsWith("1.0.2"));
+        // The background revalidation takes the 500 along
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.requests() == requests && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Assert.assertEquals(requests + 1, server.requests());
+    }
+
+    @Test
+    public void testCachedNotWaitingForNew() throws Exception {
+        int id = project(3, 1024);
+        Assert.assertEquals(Updater.UpdateAvailability.UPDATE_AVAILABLE, updater(id).checkForUpdates(true));
+        // As after a restart with a new plugin installed, while the API is down
+        Field results = Class.forName("com.arsenarsen.updater.Updater$CheckBatcher").getDeclaredField("results");
+        results.setAccessible(true);
+        ((Map<?, ?>) results.get(null)).clear();
+        int requests = server.requests();
+        server.failWith(500, 500);
+        Updater restarted = updater(id);
+        Updater added = updater(project(2, 1024));
+        CompletableFuture<Updater.UpdateAvailability> cached = restarted.checkForUpdatesAsync();
+        CompletableFuture<Updater.UpdateAvailability> fresh = added.checkForUpdatesAsync();
+        Assert.assertEquals(Updater.UpdateAvailability.UPDATE_AVAILABLE, cached.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Updater.UpdateAvailability.SM_UNREACHABLE, fresh.get(10, TimeUnit.SECONDS));
+        // One request for the new project, one revalidating the cached one
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.requests() < requests + 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Assert.assertEquals(requests + 2, server.requests());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        Updater updater = updater(project(2, 1024));
+        Assert.assertEquals(Updater.UpdateAvailability.UPDATE_AVAILABLE, updater.checkForUpdates(true));
+        MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.arsenarsen.updater:type=Updater,name=" + ObjectName.quote("Test"));
+        Assert.assertEquals(1L, beans.getAttribute(name, "Checks"));
+        Assert.assertEquals("UPDATE_AVAILABLE", beans.getAttribute(name, "LastAvailability"));
+        Assert.assertEquals(1L, beans.getAttribute(name, "CacheMisses"));
+        ObjectName aggregate = new ObjectName("com.arsenarsen.updater:type=Aggregate");
+        Assert.assertTrue((Long) beans.getAttribute(aggregate, "Checks") >= 1);
+        updater.unregisterMetrics();
+        Assert.assertFalse(beans.isRegistered(name));
+    }
+
+    @Test
+    public void testFleet() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int baseline = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+        int requests = server.requests();
+        long bytes = server.bytesSent();
+
+        List<Updater> updaters = new ArrayList<>();
+        for (int i = 0; i < UPDATERS; i++)
+            updaters.add(updater(project(3, 1024)));
+        final long[] latencies = new long[UPDATERS];
+        List<CompletableFuture<Updater.UpdateAvailability>> checks = new ArrayList<>();
+        long began = System.nanoTime();
+        for (int i = 0; i < UPDATERS; i++) {
+            final int index = i;
+            final long start = System.nanoTime();
+            checks.add(updaters.get(i).checkForUpdatesAsync(true).whenComplete(
+                    new BiConsumer<Updater.UpdateAvailability, Throwable>() {
+                        @Override
+                        public void accept(Updater.UpdateAvailability result, Throwable error) {
+                            latencies[index] = System.nanoTime() - start;
+                        }
+                    }));
+        }
+        for (CompletableFuture<Updater.UpdateAvailability> check : checks)
+            Assert.assertEquals(Updater.UpdateAvailability.UPDATE_AVAILABLE, check.get(60, TimeUnit.SECONDS));
+        long total = System.nanoTime() - began;
+
+        Arrays.sort(latencies);
+        int peak = threads.getPeakThreadCount();
+        System.out.println("Checked " + UPDATERS + " updaters in " + TimeUnit.NANOSECONDS.toMillis(total) + "ms"
+                + ", p50 " + millis(latencies, 0.5) + "ms, p95 " + millis(latencies, 0.95)
+                + "ms, p99 " + millis(latencies, 0.99) + "ms, max " + millis(latencies, 1)
+                + "ms, " + (server.requests() - requests) + " requests, " + (server.bytesSent() - bytes)
+                + " bytes, " + baseline + " threads before and " + peak + " at peak");
+        Assert.assertTrue("A thread per updater", peak - baseline < UPDATERS / 4);
+    }
+
+    private static long millis(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, index)]);
+    }
+
+    /**
+     * Loads global.yml first, so its throttle settings are not applied over the ones a test sets
+     */
+    private static Object throttle(String name) throws ReflectiveOperationException {
+        Method config = Class.forName("com.arsenarsen.updater.Updater$GlobalConfig").getDeclaredMethod("get");
+        config.setAccessible(true);
+        config.invoke(null);
+        Field field = Class.forName("com.arsenarsen.updater.Updater$Throttle").getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(null);
+    }
+
+    private static byte[] zip(Map<String, byte[]> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                zip.putNextEntry(new ZipEntry(entry.getKey()));
+                zip.write(entry.getValue());
+                zip.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int project(int releases, int size) {
+        int id = nextId++;
+        server.project(id, releases, size);
+        return id;
+    }
+
+    private static Updater updater(int id) {
+        return new Updater(Tester.testPlugin, id);
+    }
+
+    /**
+     * Points the updater at a fresh jar of its own, so downloads and backups stay out of the way of the others
+     */
+    private static File pluginFile(Updater updater) throws IOException, NoSuchFieldException, IllegalAccessException {
+        File folder = Files.createTempDirectory("plugins").toFile();
+        File plugin = new File(folder, "Test.jar");
+        Files.write(plugin.toPath(), new byte[]{'P', 'K'});
+        Field file = Updater.class.getDeclaredField("pluginFile");
+        file.setAccessible(true);
+        file.set(updater, plugin);
+        return plugin;
+    }
+}
@@ -0,0 +1,157 @@
+package tests;
+
+import com.arsenarsen.updater.Updater;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Periodic and cancelled checks against a scripted {@link Updater.Transport}, no network needed
+ */
+public class PollingTest {
+    private static int nextId = 800000 + (int) (System.currentTimeMillis() % 100000);
+
+    static {
+        WorkingDir.useTemporary();
+    }
+
+    @After
+    public void restore() {
+        Updater.setTransport(null);
+    }
+
+    @Test
+    public void testBackoff() throws Exception {
+        final int id = nextId++;
+        final List<Long> times = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicInteger failures = new AtomicInteger(4);
+        Updater.setTransport(new Updater.Transport() {
+            @Override
+            public Response send(Request request) {
+                times.add(System.currentTimeMillis());
+                if (failures.getAndDecrement() > 0)
+                    return response(request.getUrl(), 500, "");
+                return response(request.getUrl(), 200, "[{\"name\":\"Test v1.0.1\",\"fileName\":\"Test.jar\","
+                        + "\"downloadUrl\":\"http://localhost/Test.jar\",\"releaseType\":\"release\",\"projectId\":" + id + "}]");
+            }
+        });
+        Updater updater = new Updater(Tester.testPlugin, id);
+        updater.startPolling(50, TimeUnit.MILLISECONDS, false);
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (times.size() < 6 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+        } finally {
+            updater.stopPolling();
+        }
+        Assert.assertTrue(times.size() >= 6);
+        long[] gaps = new long[5];
+        for (int i = 0; i < gaps.length; i++)
+            gaps[i] = times.get(i + 1) - times.get(i);
+        // Four failures double the interval each time, the success after them goes back to it
+        // The first gap is left out, it has the cold start of the first check in it
+        for (int i = 2; i < 4; i++)
+            Assert.assertTrue(Arrays.toString(gaps), gaps[i] > gaps[i - 1] * 1.5);
+        Assert.assertTrue(Arrays.toString(gaps), gaps[4] < gaps[3] / 4);
+    }
+
+    @Test
+    public void testCancelledCheck() throws Exception {
+        final CountDownLatch sent = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Updater.setTransport(new Updater.Transport() {
+            @Override
+            public Response send(Request request) throws InterruptedIOException {
+                sent.countDown();
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw new InterruptedIOException("Cancelled");
+                }
+                return response(request.getUrl(), 500, "");
+            }
+        });
+        final List<LogRecord> severe = Collections.synchronizedList(new ArrayList<LogRecord>());
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getLevel() == Level.SEVERE)
+                    severe.add(record);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger logger = Tester.testPlugin.getLogger();
+        logger.addHandler(handler);
+        try {
+            CompletableFuture<Updater.UpdateAvailability> check = new Updater(Tester.testPlugin, nextId++).checkForUpdatesAsync(true);
+            Assert.assertTrue(sent.await(10, TimeUnit.SECONDS));
+            check.cancel(true);
+            Assert.assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+            // The check unwinds on the worker after the transport gave up
+            Thread.sleep(500);
+        } finally {
+            logger.removeHandler(handler);
+        }
+        // A cancelled check is not a failure worth a SEVERE
+        Assert.assertTrue(severe.isEmpty());
+    }
+
+    private static Updater.Transport.Response response(final String url, final int status, String body) {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        return new Updater.Transport.Response() {
+            @Override
+            public int getStatus() {
+                return status;
+            }
+
+            @Override
+            public String getUrl() {
+                return url;
+            }
+
+            @Override
+            public String getHeader(String name) {
+                return null;
+            }
+
+            @Override
+            public long getContentLength() {
+                return bytes.length;
+            }
+
+            @Override
+            public InputStream getBody() {
+                return new ByteArrayInputStream(bytes);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,60 @@
+package tests;
+
+import com.arsenarsen.updater.Updater.Version;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Version parsing and ordering, no network needed
+ */
+public class VersionTest {
+
+    @Test
+    public void testComponentsCompareNumerically() {
+        Assert.assertTrue(Version.parse("1.9").compareTo(Version.parse("2.0")) < 0);
+        Assert.assertTrue(Version.parse("1.2.10").compareTo(Version.parse("1.2.3")) > 0);
+        Assert.assertTrue(Version.parse("2").compareTo(Version.parse("1.99.99")) > 0);
+    }
+
+    @Test
+    public void testMissingComponentsAreZero() {
+        Assert.assertEquals(Version.parse("1.0"), Version.parse("1.0.0"));
+        Assert.assertEquals(Version.parse("1.0").hashCode(), Version.parse("1").hashCode());
+    }
+
+    @Test
+    public void testQualifiers() {
+        Version snapshot = Version.parse("1.10-R0.1-SNAPSHOT");
+        Assert.assertEquals("R0.1-SNAPSHOT", snapshot.getQualifier());
+        Assert.assertTrue(snapshot.isPreRelease());
+        Assert.assertTrue(snapshot.compareTo(Version.parse("1.10")) < 0);
+        Assert.assertEquals(Version.parse("1.10-R0.1"), Version.parse("1.10"));
+    }
+
+    @Test
+    public void testPreReleaseOrder() {
+        Assert.assertTrue(Version.parse("1.0-rc1").compareTo(Version.parse("1.0-rc2")) < 0);
+        Assert.assertTrue(Version.parse("1.0-rc.10").compareTo(Version.parse("1.0-rc.9")) > 0);
+        Assert.assertTrue(Version.parse("1.0-alpha").compareTo(Version.parse("1.0-beta")) < 0);
+        Assert.assertTrue(Version.parse("1.0-beta3").compareTo(Version.parse("1.0-rc1")) < 0);
+        Assert.assertTrue(Version.parse("1.0-rc2").compareTo(Version.parse("1.0")) < 0);
+        Assert.assertFalse(Version.parse("1.0-rc1").equals(Version.parse("1.0-rc2")));
+        Assert.assertEquals(Version.parse("1.0-RC2"), Version.parse("1.0-rc-2"));
+    }
+
+    @Test
+    public void testQualifierWords() {
+        Assert.assertFalse(Version.parse("1.0-sources").isPreRelease());
+        Assert.assertFalse(Version.parse("1.0-preview").isPreRelease());
+        Assert.assertFalse(Version.parse("1.0-developer").isPreRelease());
+        Assert.assertTrue(Version.parse("1.0-pre.1").isPreRelease());
+        Assert.assertEquals(Version.parse("1.0-sources"), Version.parse("1.0"));
+    }
+
+    @Test
+    public void testNames() {
+        Assert.assertEquals(Version.parse("1.0"), Version.fromName("SimpleAutoBroadcaster v1.0"));
+        Assert.assertNull(Version.fromName("SimpleAutoBroadcaster"));
+        Assert.assertNull(Version.parse("latest"));
+    }
+}
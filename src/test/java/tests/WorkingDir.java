@@ -0,0 +1,28 @@
+package tests;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+
+/**
+ * Keeps what the updater writes out of the working directory when tests run outside of Maven
+ * <br>
+ * Maven sets com.arsenarsen.updater.dir itself. Otherwise a temporary folder is used, which only works if
+ * nothing loaded the Updater class before.
+ */
+final class WorkingDir {
+    private static final String PROPERTY = "com.arsenarsen.updater.dir";
+
+    private WorkingDir() {
+    }
+
+    static synchronized void useTemporary() {
+        if (System.getProperty(PROPERTY) != null)
+            return;
+        try {
+            System.setProperty(PROPERTY, Files.createTempDirectory("AUpdater").toString());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}